@@ -0,0 +1,479 @@
+package chat.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import chat.Frame;
+import chat.LatencyHistogram;
+
+/**
+ * Puts a server under the load of many clients at once. Each simulated client opens a connection with the same
+ * hello and sends the same frames as Client, connects with "/connect", renames itself with "/nick" and optionally
+ * joins one of a number of rooms. Once every client is ready, they send chat lines, "/msg" and "/me" in a chosen mix
+ * at a fixed total rate for a fixed time.
+ *
+ * Every line carries the time it was due to be sent, so each client receiving it can tell how long delivery took.
+ * Timing from when a line was due rather than when it went out means a sender held up by the server counts the hold
+ * up too, instead of quietly sending less. Prints how many lines were sent, delivered and expected, the delivery
+ * throughput, latency percentiles for each kind of line and every connection error, and exits with status 1 if the
+ * 99th percentile or the number of errors is over the given limit, so it can be used to pass or fail a release.
+ *
+ * Run with: java -cp bin chat.client.LoadGenerator [-host localhost] [-port 9999] [-clients 1000] [-rate 1000]
+ * [-seconds 30] [-mix 80,15,5] [-rooms 0] [-bytes 64] [-senders 4] [-connectRate 500] [-maxP99Millis 0]
+ * [-maxErrors -1]
+ * where rate is lines a second from all clients together, mix is the weights of chat, /msg and /me, rooms is how
+ * many rooms the clients are spread over (0 to keep them all in the lobby), bytes is the length of each line and a
+ * limit of 0 or -1 is no limit.
+ */
+public class LoadGenerator {
+	//Every option and its default, in the order they are listed
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULTS.put("host", "localhost");
+		DEFAULTS.put("port", "9999");
+		DEFAULTS.put("clients", "1000");
+		DEFAULTS.put("rate", "1000");
+		DEFAULTS.put("seconds", "30");
+		DEFAULTS.put("mix", "80,15,5");
+		DEFAULTS.put("rooms", "0");
+		DEFAULTS.put("bytes", "64");
+		DEFAULTS.put("senders", "4");
+		DEFAULTS.put("connectRate", "500");
+		DEFAULTS.put("maxP99Millis", "0");
+		DEFAULTS.put("maxErrors", "-1");
+	}
+
+	//Marks a line sent by the generator, followed by its kind and the time it was due in nanoseconds
+	private static final String MARKER = " lg ";
+
+	//The kinds of line sent
+	private static final int CHAT = 0;
+	private static final int MSG = 1;
+	private static final int ME = 2;
+	private static final String[] KINDS = {"chat", "msg", "me"};
+
+	//How long to wait for every client to be ready, and for the last lines to arrive once sending stops
+	private static final long READY_TIMEOUT_MILLIS = 60000;
+	private static final long DRAIN_MILLIS = 2000;
+
+	private String host;
+	private int port;
+	private int rooms;
+	private String filler;
+
+	//Every simulated client, and how many of them are ready in each room, the lobby being room 0 when there are none
+	private List<Simulated> clients = new ArrayList<Simulated>();
+	private AtomicInteger[] roomSizes;
+	private CountDownLatch ready;
+
+	//Lines sent, deliveries expected and deliveries received of each kind, and how long each delivery took
+	private AtomicLong[] sent = new AtomicLong[KINDS.length];
+	private AtomicLong[] expected = new AtomicLong[KINDS.length];
+	private AtomicLong[] delivered = new AtomicLong[KINDS.length];
+	private LatencyHistogram[] latency = new LatencyHistogram[KINDS.length];
+
+	//Errors by what went wrong
+	private ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+	//Lines due before this are left over from before the measurement, as in a room's history
+	private volatile long runStart = Long.MAX_VALUE;
+
+	LoadGenerator(String host, int port, int rooms, int bytes) {
+		this.host = host;
+		this.port = port;
+		this.rooms = rooms;
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < bytes)
+			padding.append("the quick brown fox jumps over the lazy dog ");
+		filler = padding.substring(0, Math.max(0, bytes - 24));
+		roomSizes = new AtomicInteger[Math.max(1, rooms)];
+		for (int i = 0; i < roomSizes.length; i++)
+			roomSizes[i] = new AtomicInteger();
+		for (int kind = 0; kind < KINDS.length; kind++)
+		{
+			sent[kind] = new AtomicLong();
+			expected[kind] = new AtomicLong();
+			delivered[kind] = new AtomicLong();
+			latency[kind] = new LatencyHistogram();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+		for (int i = 0; i < args.length; i += 2)
+		{
+			if (!args[i].startsWith("-") || !DEFAULTS.containsKey(args[i].substring(1)) || i + 1 >= args.length)
+			{
+				System.err.println("Unknown option " + args[i] + ", options and their defaults: " + DEFAULTS);
+				System.exit(2);
+			}
+			options.put(args[i].substring(1), args[i + 1]);
+		}
+		int clients = Integer.parseInt(options.get("clients"));
+		double rate = Double.parseDouble(options.get("rate"));
+		int seconds = Integer.parseInt(options.get("seconds"));
+		int senders = Math.max(1, Integer.parseInt(options.get("senders")));
+		String[] weights = options.get("mix").split(",");
+		int[] mix = new int[KINDS.length];
+		for (int kind = 0; kind < KINDS.length && kind < weights.length; kind++)
+			mix[kind] = Integer.parseInt(weights[kind].trim());
+
+		LoadGenerator generator = new LoadGenerator(options.get("host"), Integer.parseInt(options.get("port")),
+				Integer.parseInt(options.get("rooms")), Integer.parseInt(options.get("bytes")));
+		System.out.println("Load: " + options);
+		generator.connect(clients, Double.parseDouble(options.get("connectRate")));
+		generator.run(rate, seconds, senders, mix);
+		boolean passed = generator.report(seconds, Long.parseLong(options.get("maxP99Millis")),
+				Long.parseLong(options.get("maxErrors")));
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Opens every client's connection at a steady rate and waits for all of them to be ready
+	 * @param count The number of clients
+	 * @param perSecond How many to open a second
+	 */
+	void connect(int count, double perSecond) throws InterruptedException {
+		ready = new CountDownLatch(count);
+		long start = System.nanoTime();
+		long interval = (long)(TimeUnit.SECONDS.toNanos(1) / Math.max(1, perSecond));
+		for (int i = 0; i < count; i++)
+		{
+			pause(start + i * interval);
+			Simulated client = new Simulated(i);
+			clients.add(client);
+			try {
+				client.open();
+			} catch (IOException e) {
+				error("connect failed: " + e.getMessage());
+				client.close();
+			}
+		}
+		if (!ready.await(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+			error("not ready in time");
+		int connected = 0;
+		for (Simulated client: clients)
+			if (client.ready)
+				connected++;
+		System.out.println(connected + " of " + count + " clients ready in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+	/**
+	 * Sends lines from random clients at a fixed total rate, spread over a few sender threads, then waits for the
+	 * last of them to be delivered
+	 * @param rate Lines a second from all clients together
+	 * @param seconds How long to send for
+	 * @param senders How many threads send
+	 * @param mix The weights of each kind of line
+	 */
+	void run(double rate, int seconds, int senders, final int[] mix) throws InterruptedException {
+		final long interval = (long)(TimeUnit.SECONDS.toNanos(1) * senders / Math.max(0.001, rate));
+		runStart = System.nanoTime();
+		final long end = runStart + TimeUnit.SECONDS.toNanos(seconds);
+		Thread[] threads = new Thread[senders];
+		for (int i = 0; i < senders; i++)
+		{
+			final long first = runStart + i * interval / senders;
+			final Random random = new Random(i);
+			threads[i] = new Thread("Sender " + i) {
+				@Override
+				public void run() {
+					for (long due = first; due < end; due += interval)
+					{
+						pause(due);
+						sendOne(random, mix, due);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread: threads)
+			thread.join();
+		Thread.sleep(DRAIN_MILLIS);
+		for (Simulated client: clients)
+			client.close();
+	}
+
+	//sends one line of a randomly chosen kind from a random ready client
+	private void sendOne(Random random, int[] mix, long due) {
+		Simulated from = pick(random, null);
+		if (from == null)
+			return;
+		int total = 0;
+		for (int weight: mix)
+			total += weight;
+		int roll = random.nextInt(Math.max(1, total));
+		int kind = CHAT;
+		while (kind < mix.length - 1 && roll >= mix[kind])
+			roll -= mix[kind++];
+
+		String marked = MARKER.substring(1) + kind + " " + due + " " + filler;
+		String line;
+		if (kind == MSG)
+		{
+			Simulated to = pick(random, from);
+			if (to == null)
+				return;
+			line = "/msg " + to.nick + " " + marked;
+		}
+		else if (kind == ME)
+			line = "/me " + marked;
+		else
+			line = marked;
+
+		sent[kind].incrementAndGet();
+		expected[kind].addAndGet(kind == MSG ? 1 : roomSizes[from.room].get());
+		try {
+			from.send(line);
+		} catch (IOException e) {
+			error("send failed: " + e.getMessage());
+			from.close();
+		}
+	}
+
+	//a random ready client other than one to leave out, or null if none is found after a few tries
+	private Simulated pick(Random random, Simulated except) {
+		for (int tries = 0; tries < 10; tries++)
+		{
+			Simulated client = clients.get(random.nextInt(clients.size()));
+			if (client.ready && !client.isClosed() && client != except)
+				return client;
+		}
+		return null;
+	}
+
+	//counts a delivered line if it is one of the generator's, measuring how long it took
+	private void received(String payload, long now) {
+		if (payload.startsWith("You whisper to"))
+			return;
+		int at = payload.indexOf(MARKER);
+		if (at < 0)
+			return;
+		int kindAt = at + MARKER.length();
+		int dueAt = payload.indexOf(' ', kindAt) + 1;
+		int dueEnd = payload.indexOf(' ', dueAt);
+		if (dueAt <= 0 || dueEnd < 0)
+			return;
+		int kind;
+		long due;
+		try {
+			kind = Integer.parseInt(payload.substring(kindAt, dueAt - 1));
+			due = Long.parseLong(payload.substring(dueAt, dueEnd));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (kind < 0 || kind >= KINDS.length || due < runStart)
+			return;
+		delivered[kind].incrementAndGet();
+		latency[kind].record(TimeUnit.NANOSECONDS.toMicros(now - due));
+	}
+
+	private void error(String what) {
+		AtomicLong count = errors.get(what);
+		if (count == null)
+		{
+			AtomicLong added = new AtomicLong();
+			count = errors.putIfAbsent(what, added);
+			if (count == null)
+				count = added;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Prints the results
+	 * @param seconds How long lines were sent for
+	 * @param maxP99Millis The most the 99th percentile of any kind may be, 0 for no limit
+	 * @param maxErrors The most errors there may be, -1 for no limit
+	 * @return False if a limit was exceeded
+	 */
+	boolean report(int seconds, long maxP99Millis, long maxErrors) {
+		boolean passed = true;
+		System.out.println(String.format("%-5s %10s %12s %12s %12s %9s %9s %9s %9s %9s", "kind", "sent",
+				"delivered", "expected", "delivered/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (int kind = 0; kind < KINDS.length; kind++)
+		{
+			LatencyHistogram histogram = latency[kind];
+			System.out.println(String.format("%-5s %10d %12d %12d %12.0f %9.2f %9.2f %9.2f %9.2f %9.2f", KINDS[kind],
+					sent[kind].get(), delivered[kind].get(), expected[kind].get(),
+					(double)delivered[kind].get() / Math.max(1, seconds), millis(histogram.valueAt(50)),
+					millis(histogram.valueAt(90)), millis(histogram.valueAt(99)), millis(histogram.valueAt(99.9)),
+					millis(histogram.max())));
+			if (maxP99Millis > 0 && millis(histogram.valueAt(99)) > maxP99Millis)
+			{
+				System.out.println("FAIL: " + KINDS[kind] + " p99 is over " + maxP99Millis + " ms");
+				passed = false;
+			}
+		}
+		long errorCount = 0;
+		for (Map.Entry<String, AtomicLong> error: errors.entrySet())
+		{
+			System.out.println("error: " + error.getKey() + " x" + error.getValue().get());
+			errorCount += error.getValue().get();
+		}
+		System.out.println(errorCount + " errors");
+		if (maxErrors >= 0 && errorCount > maxErrors)
+		{
+			System.out.println("FAIL: more than " + maxErrors + " errors");
+			passed = false;
+		}
+		return passed;
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	//waits until a moment given by System.nanoTime
+	private static void pause(long until) {
+		long wait;
+		while ((wait = until - System.nanoTime()) > 0)
+			LockSupport.parkNanos(wait);
+	}
+
+	//==============================================================================================================
+	/**
+	 * One simulated client: a connection, a thread reading it and where the client is in connecting
+	 */
+	private class Simulated implements Runnable {
+		private int index;
+		private Socket socket = new Socket();
+		private DataOutputStream out;
+		private DataInputStream in;
+		private int clientId;
+		private int sequence = 0;
+
+		//The client's name once the server has confirmed it, and the room it talks in
+		volatile String nick;
+		int room;
+		volatile boolean ready = false;
+		private AtomicBoolean closed = new AtomicBoolean(false);
+		//Set once the reply to "/nick" has arrived
+		private boolean named = false;
+
+		Simulated(int index) {
+			this.index = index;
+			room = rooms > 0 ? index % rooms : 0;
+		}
+
+		/**
+		 * Connects, exchanges hellos as Client does, sends "/connect" and starts the reader
+		 */
+		void open() throws IOException {
+			socket.connect(new InetSocketAddress(host, port), 10000);
+			socket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out.write(Frame.clientHello());
+			out.flush();
+			byte[] hello = new byte[Frame.SERVER_HELLO_SIZE];
+			in.readFully(hello);
+			if (!Frame.isHello(hello, 0))
+				throw new IOException("not a binary protocol server");
+			clientId = ByteBuffer.wrap(hello, Frame.MAGIC.length + 1, 4).getInt();
+			send("/connect load" + index + "_");
+			//a small stack, there are thousands of these
+			Thread reader = new Thread(null, this, "Reader " + index, 128 * 1024);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		synchronized void send(String line) throws IOException {
+			out.write(Frame.encode(Frame.TYPE_MESSAGE, ++sequence, clientId, line));
+			out.flush();
+		}
+
+		public void run() {
+			try {
+				Frame frame;
+				while ((frame = Frame.read(in)) != null)
+				{
+					String payload = frame.getPayload();
+					if (ready)
+						received(payload, System.nanoTime());
+					else
+						connecting(payload);
+				}
+				if (!isClosed())
+					error("connection closed by server");
+			} catch (IOException e) {
+				if (!isClosed())
+					error("connection lost: " + e.getMessage());
+			}
+			close();
+		}
+
+		//steps through "/connect", "/nick" and "/join" as the server answers each
+		private void connecting(String payload) throws IOException {
+			if (nick == null)
+			{
+				if (payload.startsWith("/join "))
+				{
+					nick = payload.substring(6);
+					send("/nick load" + index);
+				}
+				return;
+			}
+			if (!named)
+			{
+				if (payload.startsWith("/nick "))
+					nick = payload.substring(6);
+				else if (payload.equals("Username already in use!"))
+					error("nick refused");
+				else
+					return;
+				named = true;
+				if (rooms == 0)
+					becomeReady();
+				else
+					send("/join #load" + room);
+				return;
+			}
+			if (payload.equals("/room #load" + room))
+				becomeReady();
+		}
+
+		private void becomeReady() {
+			roomSizes[room].incrementAndGet();
+			ready = true;
+			LoadGenerator.this.ready.countDown();
+		}
+
+		boolean isClosed() {
+			return closed.get();
+		}
+
+		void close() {
+			if (!closed.compareAndSet(false, true))
+				return;
+			if (ready)
+				roomSizes[room].decrementAndGet();
+			else
+				LoadGenerator.this.ready.countDown();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package chat.server;
+
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import chat.Frame;
+
+/**
+ * Compares the cost of fanning one line out to many clients when every client's PrintWriter encodes it, as the
+ * server used to, against encoding it once into a Broadcast whose buffer every queue shares. Each round queues
+ * the line for every client and then drains the queues the way a connection writer would.
+ *
+ * Run with: java -cp bin chat.server.BroadcastBenchmark [rounds]
+ */
+public class BroadcastBenchmark {
+	private static final String LINE = "(12:00)somebody : a chat message of a fairly ordinary length, nothing special\n";
+
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		for (int clients: new int[] {10, 100, 1000})
+		{
+			OutboundQueue[] queues = new OutboundQueue[clients];
+			PrintWriter[] writers = new PrintWriter[clients];
+			for (int i = 0; i < clients; i++)
+			{
+				queues[i] = new OutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0) {
+					@Override
+					protected void overflowed() {
+					}
+				};
+				writers[i] = new PrintWriter(new OutputStreamWriter(queues[i]), true);
+			}
+			CharsetEncoder textEncoder = Charset.defaultCharset().newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			CharsetEncoder frameEncoder = Charset.forName("UTF-8").newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+			int perRound = Math.max(1, rounds * 10 / clients);
+			for (int warmup = 0; warmup < 3; warmup++)
+			{
+				encodePerClient(writers, queues, perRound);
+				encodeOnce(queues, textEncoder, frameEncoder, perRound);
+			}
+
+			long start = System.nanoTime();
+			encodePerClient(writers, queues, perRound);
+			long perClient = (System.nanoTime() - start) / perRound;
+			start = System.nanoTime();
+			encodeOnce(queues, textEncoder, frameEncoder, perRound);
+			long once = (System.nanoTime() - start) / perRound;
+
+			System.out.println(clients + " clients: encode per client " + perClient + " ns/broadcast, encode once "
+					+ once + " ns/broadcast");
+		}
+	}
+
+	private static void encodePerClient(PrintWriter[] writers, OutboundQueue[] queues, int rounds) {
+		for (int round = 0; round < rounds; round++)
+		{
+			for (PrintWriter writer: writers)
+			{
+				writer.println(LINE);
+				writer.flush();
+			}
+			drain(queues);
+		}
+	}
+
+	private static void encodeOnce(OutboundQueue[] queues, CharsetEncoder textEncoder, CharsetEncoder frameEncoder,
+			int rounds) {
+		for (int round = 0; round < rounds; round++)
+		{
+			Broadcast broadcast = new Broadcast(LINE, Frame.TYPE_TEXT, round, 1, textEncoder, frameEncoder);
+			for (OutboundQueue queue: queues)
+				queue.send(broadcast.encoded(false));
+			broadcast.release();
+			drain(queues);
+		}
+	}
+
+	private static void drain(OutboundQueue[] queues) {
+		for (OutboundQueue queue: queues)
+		{
+			SharedBuffer buffer;
+			while ((buffer = queue.poll()) != null)
+				buffer.release();
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package chat.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs microbenchmarks with warmup and repeated measurement, the way JMH does, without needing anything but the JDK.
+ * Each benchmark is first run with more and more operations until one iteration takes about the chosen time, then
+ * run for a number of warmup iterations that are thrown away and then measured for a number of iterations. The
+ * score is the mean time per operation over the measured iterations and the error their standard deviation; where
+ * the JVM counts them, the bytes allocated per operation are given too.
+ *
+ * Results are printed and written as CSV, one row per benchmark and parameter, so runs can be kept and compared.
+ * Given the CSV of an earlier run as a baseline, every benchmark that got slower by more than the threshold is
+ * reported as a regression. Unlike JMH, every benchmark runs in the same JVM, so what the JIT makes of one depends on
+ * what ran before it; only compare runs made with the same options and filter, on the same machine.
+ *
+ * Options: -warmups 5 -iterations 10 -millis 500 -filter REGEX -out FILE.csv -baseline FILE.csv -threshold 10
+ */
+class Harness {
+	//Column headings of the CSV written
+	private static final String HEADER = "benchmark,param,iterations,score,error,unit,allocated";
+
+	/**
+	 * The code being measured
+	 */
+	interface Benchmark {
+		/**
+		 * @param operations How many operations to run
+		 * @return Anything computed along the way, so the JIT can't throw the work away
+		 */
+		long run(long operations) throws Exception;
+	}
+
+	//Everything benchmarks return ends up here
+	static volatile long sink;
+
+	private int warmups = 5;
+	private int iterations = 10;
+	private long iterationMillis = 500;
+	private Pattern filter = null;
+	private String out = null;
+	private String baseline = null;
+	private double threshold = 10;
+
+	//One CSV row per benchmark run so far
+	private List<String> results = new ArrayList<String>();
+
+	/**
+	 * @param args The options, see the class comment
+	 * @throws IllegalArgumentException If an option is unknown or missing its value
+	 */
+	Harness(String[] args) {
+		for (int i = 0; i < args.length; i += 2)
+		{
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+			String value = args[i + 1];
+			if (args[i].equals("-warmups"))
+				warmups = Integer.parseInt(value);
+			else if (args[i].equals("-iterations"))
+				iterations = Math.max(1, Integer.parseInt(value));
+			else if (args[i].equals("-millis"))
+				iterationMillis = Math.max(1, Long.parseLong(value));
+			else if (args[i].equals("-filter"))
+				filter = Pattern.compile(value);
+			else if (args[i].equals("-out"))
+				out = value;
+			else if (args[i].equals("-baseline"))
+				baseline = value;
+			else if (args[i].equals("-threshold"))
+				threshold = Double.parseDouble(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+	}
+
+	/**
+	 * @param name A benchmark's name
+	 * @return True if the filter lets it run
+	 */
+	boolean selected(String name) {
+		return filter == null || filter.matcher(name).find();
+	}
+
+	/**
+	 * Measures a benchmark, unless the filter leaves it out
+	 * @param name The benchmark's name
+	 * @param param What it was run with, such as a number of members, or "" for nothing
+	 * @param benchmark The code to measure
+	 * @throws Exception If the benchmark fails
+	 */
+	void run(String name, String param, Benchmark benchmark) throws Exception {
+		if (!selected(name))
+			return;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		//as many operations as fit in one iteration
+		long operations = 1;
+		long elapsed;
+		while ((elapsed = time(benchmark, operations)) < iterationMillis * 1000000L / 10 && operations < Long.MAX_VALUE / 4)
+			operations *= 2;
+		operations = Math.max(1, operations * iterationMillis * 1000000L / Math.max(1, elapsed));
+
+		for (int i = 0; i < warmups; i++)
+			time(benchmark, operations);
+
+		double[] scores = new double[iterations];
+		long allocated = 0;
+		for (int i = 0; i < iterations; i++)
+		{
+			long allocatedBefore = allocatedBytes(threads);
+			scores[i] = (double)time(benchmark, operations) / operations;
+			allocated += allocatedBytes(threads) - allocatedBefore;
+		}
+		double mean = 0;
+		for (double score: scores)
+			mean += score;
+		mean /= iterations;
+		double variance = 0;
+		for (double score: scores)
+			variance += (score - mean) * (score - mean);
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		double perOperation = allocatedBytes(threads) < 0 ? -1 : (double)allocated / iterations / operations;
+
+		System.out.println(String.format("%-40s %-10s %14.1f +- %10.1f ns/op %12.1f bytes/op", name, param, mean,
+				error, perOperation));
+		results.add(name + "," + param + "," + iterations + "," + String.format("%.3f", mean) + ","
+				+ String.format("%.3f", error) + ",ns/op," + String.format("%.1f", perOperation));
+	}
+
+	/**
+	 * Writes the results and compares them with the baseline, if those were asked for
+	 * @return False if a benchmark regressed
+	 * @throws IOException If the results could not be written or the baseline read
+	 */
+	boolean finish() throws IOException {
+		if (out != null)
+		{
+			PrintWriter writer = new PrintWriter(new FileWriter(out));
+			try {
+				writer.println(HEADER);
+				for (String result: results)
+					writer.println(result);
+			} finally {
+				writer.close();
+			}
+			System.out.println("Results written to " + out);
+		}
+		if (baseline == null)
+			return true;
+
+		Map<String, Double> before = new HashMap<String, Double>();
+		BufferedReader reader = new BufferedReader(new FileReader(baseline));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] columns = line.split(",");
+				if (columns.length >= 4 && !line.equals(HEADER))
+					before.put(columns[0] + "," + columns[1], Double.valueOf(columns[3]));
+			}
+		} finally {
+			reader.close();
+		}
+		boolean passed = true;
+		for (String result: results)
+		{
+			String[] columns = result.split(",");
+			Double old = before.get(columns[0] + "," + columns[1]);
+			if (old == null || old <= 0)
+				continue;
+			double change = (Double.parseDouble(columns[3]) - old) / old * 100;
+			if (change > threshold)
+			{
+				System.out.println(String.format("REGRESSION %s %s: %.1f ns/op, was %.1f (%+.1f%%)", columns[0],
+						columns[1], Double.parseDouble(columns[3]), old, change));
+				passed = false;
+			}
+		}
+		System.out.println(passed ? "No regressions over " + threshold + "% against " + baseline
+				: "Regressions found against " + baseline);
+		return passed;
+	}
+
+	private static long time(Benchmark benchmark, long operations) throws Exception {
+		long start = System.nanoTime();
+		sink += benchmark.run(operations);
+		return System.nanoTime() - start;
+	}
+
+	//Bytes this thread has allocated so far, or -1 on JVMs that don't count them
+	private static long allocatedBytes(ThreadMXBean threads) {
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
@@ -0,0 +1,272 @@
+package chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+
+import chat.MessageHandler;
+
+/**
+ * Microbenchmarks for the relay's hot paths, run by the Harness:
+ *   MessageHandler written and read through object streams the way old clients and the server do, and toString
+ *   every command a client can send, through ClientSession.handleMessage, plus a plain chat line
+ *   sending a room's user list, at several sizes
+ *   broadcasting a line to a room of several sizes, every member's queue being drained as a writer would
+ *
+ * Commands run against a real server that isn't accepting connections, so their cost includes what they do to the
+ * registry, the rooms and the chat log, which is written to a directory under java.io.tmpdir. "/help" starts a
+ * program and "/connect", "/resume" and "/disconnect" end or start sessions, so those are left out.
+ *
+ * Run with: java -cp bin chat.server.RelayBenchmarks [-out results.csv] [-baseline previous.csv] [Harness options]
+ */
+public class RelayBenchmarks {
+	private static final String LINE = "a chat message of a fairly ordinary length, nothing special";
+
+	public static void main(String[] args) throws Exception {
+		Harness harness = new Harness(args);
+
+		//the server logs to the console when headless, which would bury the results
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		ChatRelayServer server = new ChatRelayServer(new ServerConfig().set("headless", "true")
+				.set("logDirectory", new File(System.getProperty("java.io.tmpdir"), "stevechat-bench").getPath()));
+		System.setOut(console);
+
+		messageHandler(harness);
+		commands(harness, server);
+		roster(harness, server);
+		broadcast(harness, server);
+		System.exit(harness.finish() ? 0 : 1);
+	}
+
+	private static void messageHandler(Harness harness) throws Exception {
+		final MessageHandler message = new MessageHandler();
+		message.setTimestamp("12:00");
+		message.setUserLabel("somebody");
+		message.setMessage(LINE);
+
+		//written as the client's sender does, resetting after each so the next carries no back references
+		final ByteArrayOutputStream written = new ByteArrayOutputStream(1024 * 1024);
+		final ObjectOutputStream objects = new ObjectOutputStream(written);
+		harness.run("MessageHandler.writeObject", "", new Harness.Benchmark() {
+			public long run(long operations) throws Exception {
+				for (long i = 0; i < operations; i++)
+				{
+					objects.writeObject(message);
+					objects.reset();
+					objects.flush();
+					if (written.size() > 512 * 1024)
+						written.reset();
+				}
+				return written.size();
+			}
+		});
+
+		//a stream of messages as the server's reader sees it, started again whenever it runs out
+		final int count = 4096;
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ObjectOutputStream writer = new ObjectOutputStream(stream);
+		for (int i = 0; i < count; i++)
+		{
+			writer.writeObject(message);
+			writer.reset();
+		}
+		writer.close();
+		final byte[] bytes = stream.toByteArray();
+		harness.run("MessageHandler.readObject", "", new Harness.Benchmark() {
+			public long run(long operations) throws Exception {
+				long total = 0;
+				ObjectInputStream reader = null;
+				for (long i = 0; i < operations; i++)
+				{
+					if (i % count == 0)
+						reader = new ObjectInputStream(new ByteArrayInputStream(bytes));
+					total += ((MessageHandler)reader.readObject()).getMessage().length();
+				}
+				return total;
+			}
+		});
+
+		harness.run("MessageHandler.toString", "", new Harness.Benchmark() {
+			public long run(long operations) {
+				long total = 0;
+				for (long i = 0; i < operations; i++)
+					total += message.toString().length();
+				return total;
+			}
+		});
+	}
+
+	private static void commands(Harness harness, ChatRelayServer server) throws Exception {
+		if (!harness.selected("handleMessage"))
+			return;
+		final Sink sender = Sink.connect(server, "bench", true);
+		final Sink other = Sink.connect(server, "other", true);
+
+		String[][] commands = {
+			{"chat", LINE},
+			{"/whois", "/whois other"},
+			{"/msg", "/msg other " + LINE},
+			{"/me", "/me " + LINE},
+			{"/slap", "/slap other"},
+			{"/join", "/join #lobby"},
+			{"/rooms", "/rooms"},
+			{"/roster", "/roster"},
+			{"/cmdlist", "/cmdlist"},
+			{"unknown", "/nosuchcommand"},
+		};
+		for (final String[] command: commands)
+		{
+			harness.run("handleMessage", command[0], new Harness.Benchmark() {
+				public long run(long operations) throws Exception {
+					for (long i = 0; i < operations; i++)
+					{
+						sender.handle(command[1]);
+						sender.drain();
+						other.drain();
+					}
+					return operations;
+				}
+			});
+		}
+
+		//these change the session, so each operation changes it back
+		harness.run("handleMessage", "/nick", new Harness.Benchmark() {
+			public long run(long operations) throws Exception {
+				for (long i = 0; i < operations; i++)
+				{
+					sender.handle(i % 2 == 0 ? "/nick bench_" : "/nick bench");
+					sender.drain();
+					other.drain();
+				}
+				return operations;
+			}
+		});
+		harness.run("handleMessage", "/join+/part", new Harness.Benchmark() {
+			public long run(long operations) throws Exception {
+				for (long i = 0; i < operations; i++)
+				{
+					sender.handle("/join #bench");
+					sender.handle("/part #bench");
+					sender.drain();
+				}
+				return operations;
+			}
+		});
+	}
+
+	private static void roster(Harness harness, ChatRelayServer server) throws Exception {
+		final Sink reader = Sink.create(server, "reader", true);
+		for (int size: new int[] {10, 100, 1000, 10000})
+		{
+			//users of another node fill the list without a broadcast to every member for each one
+			final Room room = new Room("#roster", 100, 64 * 1024, server.cluster);
+			for (int i = 0; i < size; i++)
+				room.addRemote("bench", "user" + i);
+			harness.run("Room.sendRoster", Integer.toString(size), new Harness.Benchmark() {
+				public long run(long operations) {
+					for (long i = 0; i < operations; i++)
+					{
+						room.sendRoster(reader);
+						reader.drain();
+					}
+					return operations;
+				}
+			});
+		}
+	}
+
+	private static void broadcast(Harness harness, ChatRelayServer server) throws Exception {
+		if (!harness.selected("Room.broadcast"))
+			return;
+		for (int size: new int[] {1, 10, 100, 1000})
+		{
+			final Room room = new Room("#fanout", 100, 64 * 1024, server.cluster);
+			//half the members speak each wire format, so both encodings are made
+			final Sink[] members = new Sink[size];
+			for (int i = 0; i < size; i++)
+			{
+				members[i] = Sink.create(server, "member" + i, i % 2 == 0);
+				room.add(members[i]);
+			}
+			for (Sink member: members)
+				member.drain();
+			harness.run("Room.broadcast", Integer.toString(size), new Harness.Benchmark() {
+				public long run(long operations) {
+					for (long i = 0; i < operations; i++)
+					{
+						room.broadcast(LINE);
+						for (Sink member: members)
+							member.drain();
+					}
+					return operations;
+				}
+			});
+		}
+	}
+
+	//==============================================================================================================
+	/**
+	 * A session whose output goes to a queue the benchmark empties, as a connection's writer would
+	 */
+	private static class Sink extends ClientSession {
+		private OutboundQueue queue;
+
+		private Sink(ChatRelayServer server, OutboundQueue queue, boolean binary) throws Exception {
+			super(server, server.nextConnectionId(), InetAddress.getByName("127.0.0.1"), new PrintWriter(
+					binary ? new FrameWriter(queue) : new OutputStreamWriter(queue), true), queue, binary);
+			this.queue = queue;
+		}
+
+		/**
+		 * @return A session that hasn't connected, named for rooms it is added to directly
+		 */
+		static Sink create(ChatRelayServer server, String name, boolean binary) throws Exception {
+			OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0) {
+				@Override
+				protected void overflowed() {
+				}
+			};
+			Sink sink = new Sink(server, queue, binary);
+			sink.clientName = name;
+			return sink;
+		}
+
+		/**
+		 * @return A session that has connected with "/connect NAME", as a client would
+		 */
+		static Sink connect(ChatRelayServer server, String name, boolean binary) throws Exception {
+			Sink sink = create(server, null, binary);
+			sink.handle("/connect " + name);
+			sink.drain();
+			return sink;
+		}
+
+		void handle(String line) throws Exception {
+			MessageHandler message = new MessageHandler();
+			message.setMessage(line);
+			handleMessage(message);
+		}
+
+		void drain() {
+			SharedBuffer buffer;
+			while ((buffer = queue.poll()) != null)
+				buffer.release();
+		}
+
+		@Override
+		protected void closeTransport() {
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package chat.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Compares stamping a message the way the server used to, with a new SimpleDateFormat and Date each time,
+ * against reading the CoarseClock. Prints the time and, where the JVM can measure it, the bytes allocated per
+ * stamp for each.
+ *
+ * Run with: java -cp bin chat.server.TimestampBenchmark [iterations]
+ */
+public class TimestampBenchmark {
+	//Stops the JIT from throwing the work away
+	private static int sink;
+
+	public static void main(String[] args) {
+		final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+		//warm both paths up before measuring
+		for (int i = 0; i < 3; i++)
+		{
+			formatEachTime(iterations / 10);
+			coarseClock(iterations / 10);
+		}
+
+		report("SimpleDateFormat per message", new Runnable() {
+			public void run() {
+				formatEachTime(iterations);
+			}
+		}, iterations);
+		report("CoarseClock.minute()", new Runnable() {
+			public void run() {
+				coarseClock(iterations);
+			}
+		}, iterations);
+		System.out.println("(ignore) " + sink);
+	}
+
+	private static void formatEachTime(int iterations) {
+		for (int i = 0; i < iterations; i++)
+			sink += (new SimpleDateFormat ("HH:mm")).format(new Date()).length();
+	}
+
+	private static void coarseClock(int iterations) {
+		for (int i = 0; i < iterations; i++)
+			sink += CoarseClock.minute().length();
+	}
+
+	private static void report(String name, Runnable benchmark, int iterations) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocatedBefore = allocatedBytes(threads);
+		long start = System.nanoTime();
+		benchmark.run();
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes(threads) - allocatedBefore;
+
+		String line = name + ": " + String.format("%.1f", (double)elapsed / iterations) + " ns/op";
+		if (allocatedBefore >= 0)
+			line += ", " + String.format("%.1f", (double)allocated / iterations) + " bytes/op";
+		System.out.println(line);
+	}
+
+	//Bytes this thread has allocated so far, or -1 on JVMs that don't count them
+	private static long allocatedBytes(ThreadMXBean threads) {
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
@@ -0,0 +1,222 @@
+package chat;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * A single message of the binary wire protocol shared by the Client and the ChatRelayServer.
+ *
+ * A client that speaks it opens the connection with a hello (MAGIC followed by the highest version it supports)
+ * and the server answers with MAGIC, the version both will use and the id it gave the connection. Clients that
+ * open with a Java object stream instead are served the old way, which keeps old clients working.
+ *
+ * Every frame after the hello is laid out as
+ * [int length][byte type][int sequence][int sender][UTF-8 payload]
+ * where length counts everything after itself and sender is the id of the connection that wrote it: the client's
+ * own on the frames it sends, the connection of the user who said it on a line a user said, and 0 on anything else
+ * the server sends. A client numbers the frames it sends; the server sends broadcasts with its broadcast sequence
+ * number, which every client sees in the same order, and lines meant for one client only with sequence 0.
+ *
+ * A client only acts on TYPE_DIRECTIVE frames. Whatever a TYPE_TEXT frame holds is shown and nothing more, and
+ * the server refuses messages with line breaks, so what one user types can never reach another as a directive.
+ */
+public class Frame {
+	//Marks a connection that speaks the binary protocol rather than a Java object stream
+	public static final byte[] MAGIC = {'S', 'C', 'W', 'P'};
+
+	//Highest protocol version this build understands
+	public static final byte VERSION = 1;
+
+	//Sizes of the hello sent by the client and the one sent back by the server
+	public static final int CLIENT_HELLO_SIZE = MAGIC.length + 1;
+	public static final int SERVER_HELLO_SIZE = MAGIC.length + 5;
+
+	//Frame types
+	public static final byte TYPE_MESSAGE = 1; //something a user typed, chat or command
+	public static final byte TYPE_TEXT = 2; //a line for the client to display
+	public static final byte TYPE_DIRECTIVE = 3; //a server directive such as "/join name"
+
+	//Size of the fields between the length and the payload
+	public static final int HEADER_SIZE = 9;
+
+	//Largest payload either side will accept
+	public static final int MAX_PAYLOAD = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte type;
+	private int sequence;
+	private int sender;
+	private String payload;
+
+	/**
+	 * @param type One of the TYPE_ constants
+	 * @param sequence Position of the frame in its direction of the connection
+	 * @param sender Connection id of the writer, 0 for the server
+	 * @param payload The text carried by the frame
+	 */
+	public Frame(byte type, int sequence, int sender, String payload){
+		this.type = type;
+		this.sequence = sequence;
+		this.sender = sender;
+		this.payload = payload;
+	}
+
+	public byte getType(){
+		return type;
+	}
+
+	public int getSequence(){
+		return sequence;
+	}
+
+	public int getSender(){
+		return sender;
+	}
+
+	public String getPayload(){
+		return payload;
+	}
+
+	/**
+	 * @return The frame as the MessageHandler the server works with
+	 */
+	public MessageHandler toMessageHandler(){
+		MessageHandler message = new MessageHandler();
+		message.setMessage(payload);
+		return message;
+	}
+
+	/**
+	 * @return The frame in its wire form, including the length prefix
+	 */
+	public byte[] encode(){
+		return encode(type, sequence, sender, payload);
+	}
+
+	/**
+	 * Encodes a frame without creating a Frame object
+	 * @return The frame in its wire form, including the length prefix
+	 */
+	public static byte[] encode(byte type, int sequence, int sender, String payload){
+		byte[] text = payload.getBytes(UTF8);
+		ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_SIZE + text.length);
+		frame.putInt(HEADER_SIZE + text.length);
+		frame.put(type);
+		frame.putInt(sequence);
+		frame.putInt(sender);
+		frame.put(text);
+		return frame.array();
+	}
+
+	/**
+	 * Encodes a frame into a buffer the caller owns, for senders that reuse their buffers
+	 * @param payload The text of the frame
+	 * @param encoder A UTF-8 encoder, reset before use
+	 * @param out Where to put the frame, with room for the length prefix, header and encoded payload
+	 */
+	public static void encode(byte type, int sequence, int sender, CharBuffer payload, CharsetEncoder encoder, ByteBuffer out){
+		int start = out.position();
+		out.position(start + 4 + HEADER_SIZE);
+		encoder.reset();
+		CoderResult result = encoder.encode(payload, out, true);
+		if (!result.isOverflow())
+			result = encoder.flush(out);
+		if (result.isOverflow())
+			throw new IllegalArgumentException("Frame does not fit the buffer");
+		out.putInt(start, out.position() - start - 4);
+		out.put(start + 4, type);
+		out.putInt(start + 5, sequence);
+		out.putInt(start + 9, sender);
+	}
+
+	/**
+	 * Reads the next frame from a blocking stream
+	 * @param in The stream, positioned at the start of a frame
+	 * @return The frame, or null if the stream ended cleanly between frames
+	 * @throws IOException If the stream ended mid-frame or holds something that is not a frame
+	 */
+	public static Frame read(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		checkLength(length);
+		byte type = in.readByte();
+		int sequence = in.readInt();
+		int sender = in.readInt();
+		byte[] text = new byte[length - HEADER_SIZE];
+		in.readFully(text);
+		return new Frame(type, sequence, sender, new String(text, UTF8));
+	}
+
+	/**
+	 * Takes the next frame out of a buffer of received bytes, leaving the buffer untouched if it is incomplete
+	 * @param in Received bytes, positioned at the start of a frame
+	 * @return The frame, or null if it has not fully arrived yet
+	 * @throws IOException If the buffer holds something that is not a frame
+	 */
+	public static Frame decode(ByteBuffer in) throws IOException {
+		if (in.remaining() < 4)
+			return null;
+		int length = in.getInt(in.position());
+		checkLength(length);
+		if (in.remaining() < 4 + length)
+			return null;
+		in.getInt();
+		byte type = in.get();
+		int sequence = in.getInt();
+		int sender = in.getInt();
+		byte[] text = new byte[length - HEADER_SIZE];
+		in.get(text);
+		return new Frame(type, sequence, sender, new String(text, UTF8));
+	}
+
+	private static void checkLength(int length) throws IOException {
+		if (length < HEADER_SIZE || length > HEADER_SIZE + MAX_PAYLOAD)
+			throw new IOException("Invalid frame length " + length);
+	}
+
+	/**
+	 * @return The hello a client opens the connection with
+	 */
+	public static byte[] clientHello(){
+		ByteBuffer hello = ByteBuffer.allocate(CLIENT_HELLO_SIZE);
+		hello.put(MAGIC);
+		hello.put(VERSION);
+		return hello.array();
+	}
+
+	/**
+	 * @param clientVersion The version the client asked for
+	 * @param connectionId The id the server gave the connection
+	 * @return The server's answer to a client hello
+	 */
+	public static byte[] serverHello(byte clientVersion, int connectionId){
+		ByteBuffer hello = ByteBuffer.allocate(SERVER_HELLO_SIZE);
+		hello.put(MAGIC);
+		hello.put((byte)Math.min(clientVersion, VERSION));
+		hello.putInt(connectionId);
+		return hello.array();
+	}
+
+	/**
+	 * @return True if the bytes at offset start with MAGIC
+	 */
+	public static boolean isHello(byte[] bytes, int offset){
+		for (int i = 0; i < MAGIC.length; i++)
+		{
+			if (bytes[offset + i] != MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+}
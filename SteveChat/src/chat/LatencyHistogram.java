@@ -0,0 +1,136 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often each duration occurs, in the same few kilobytes however many are recorded, so percentiles can be
+ * read off at any time. Values below 128 are counted exactly; above that each power of two is split into 64 buckets,
+ * so a percentile is never more than about 1.5% above the true value. Recording is a couple of atomic increments and
+ * never locks, so any number of threads can record at once.
+ *
+ * The unit is the caller's choice, microseconds being the usual one.
+ */
+public class LatencyHistogram {
+	//Buckets per power of two, and the values below twice that which are counted exactly
+	private static final int SUB_BUCKETS = 64;
+	private static final int SUB_BITS = 6;
+	private static final int EXACT = SUB_BUCKETS * 2;
+
+	//Enough buckets for every positive long
+	private static final int BUCKETS = EXACT + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Counts one value
+	 * @param value The duration, negative values being counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(indexOf(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		long highest;
+		while (value > (highest = max.get()) && !max.compareAndSet(highest, value))
+			;
+	}
+
+	/**
+	 * @return How many values have been recorded
+	 */
+	public long count() {
+		return total.get();
+	}
+
+	/**
+	 * @return The largest value recorded, 0 if there are none
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @return The mean of the values recorded, 0 if there are none
+	 */
+	public double mean() {
+		long count = total.get();
+		return count == 0 ? 0 : (double)sum.get() / count;
+	}
+
+	/**
+	 * @param percentile The percentile wanted, 0 to 100, e.g. 99.9
+	 * @return The value that percentile of the recorded values are at or below, rounded up to the top of its bucket,
+	 * or 0 if nothing has been recorded
+	 */
+	public long valueAt(double percentile) {
+		long count = total.get();
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestIn(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds every value recorded by another histogram to this one, so histograms recorded separately can be read
+	 * as one. Values the other records while this runs may or may not be added
+	 * @param other The histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		long added = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			long count = other.counts.get(i);
+			if (count != 0)
+			{
+				counts.addAndGet(i, count);
+				added += count;
+			}
+		}
+		//the total follows the buckets actually copied, so percentiles always add up
+		total.addAndGet(added);
+		sum.addAndGet(other.sum.get());
+		long value = other.max.get();
+		long highest;
+		while (value > (highest = max.get()) && !max.compareAndSet(highest, value))
+			;
+	}
+
+	/**
+	 * Forgets every value recorded. Values recorded while this runs may or may not be kept
+	 */
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int indexOf(long value) {
+		if (value < EXACT)
+			return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return EXACT + (shift - 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+	}
+
+	//the largest value counted in a bucket
+	private static long highestIn(int index) {
+		if (index < EXACT)
+			return index;
+		int shift = (index - EXACT) / SUB_BUCKETS + 1;
+		long sub = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -69,9 +69,9 @@ public class MessageHandler implements Serializable{
 	 * Returns a string representation of the message object
 	 */
 	public String toString(){
-	    StringBuffer buff = new StringBuffer();
-	    buff.append("("+timestamp.toString()+")");
-	    buff.append(getUser()+" : ");
+	    StringBuilder buff = new StringBuilder(64);
+	    buff.append('(').append(timestamp).append(')');
+	    buff.append(getUser()).append(" : ");
 	    buff.append(getMessage());
 	    buff.append('\n');
 	    return buff.toString();
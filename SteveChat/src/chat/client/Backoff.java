@@ -0,0 +1,45 @@
+package chat.client;
+
+import java.util.Random;
+
+/**
+ * Delays between connection attempts. Each attempt doubles the longest possible wait, up to a limit, and the actual
+ * wait is picked at random below it, so clients dropped together by a server restart or a network blip spread their
+ * reconnects out instead of all arriving at once
+ */
+class Backoff {
+	private static final Random RANDOM = new Random();
+
+	private long baseMillis;
+	private long maxMillis;
+	private int attempts = 0;
+
+	/**
+	 * @param baseMillis The longest wait before the first retry
+	 * @param maxMillis The longest wait ever
+	 */
+	Backoff(long baseMillis, long maxMillis)
+	{
+		this.baseMillis = baseMillis;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * @return How long to wait before the next attempt
+	 */
+	long next()
+	{
+		long ceiling = baseMillis << Math.min(attempts, 20);
+		attempts++;
+		ceiling = Math.min(Math.max(ceiling, 1), maxMillis);
+		return (long)(RANDOM.nextDouble() * ceiling);
+	}
+
+	/**
+	 * Goes back to the shortest waits, once a connection has worked
+	 */
+	void reset()
+	{
+		attempts = 0;
+	}
+}
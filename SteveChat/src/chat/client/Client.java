@@ -6,19 +6,33 @@
 package chat.client;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.DefaultCaret;
 
+import chat.Frame;
 import chat.MessageHandler;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,10 +55,46 @@ public class Client extends JFrame implements ActionListener
 
 	private ObjectOutputStream outputStream = null;
 	private BufferedReader inputStream = null;
+	
+	//Used instead of the two streams above when the server speaks the binary protocol
+	private DataOutputStream frameOutput = null;
+	private DataInputStream frameInput = null;
+	private int clientId;
+	
+	//How long to wait for the server to answer the binary protocol hello before treating it as an old server
+	private static final int HELLO_TIMEOUT = 3000;
+
+	//Longest wait before the first retry of a connection and the longest wait ever, see Backoff
+	private static final long RETRY_BASE_MILLIS = 500;
+	private static final long RETRY_MAX_MILLIS = 30000;
+
+	//Lets this client take its session back after the connection drops: the token the server gave it and the
+	//sequence number of the last broadcast received in each room. Both are set by the receive thread
+	private volatile String resumeToken = null;
+	private Map<String, Long> lastSequences = new ConcurrentHashMap<String, Long>();
+
+	//Bumped to call off a connection attempt in progress. reconnecting is set while the client tries to get a
+	//dropped connection back
+	private volatile int connectGeneration = 0;
+	private volatile boolean reconnecting = false;
+	//Only reset once the server has sent something, so a server that takes connections and drops them at once
+	//is retried less and less often
+	private Backoff backoff = new Backoff(RETRY_BASE_MILLIS, RETRY_MAX_MILLIS);
+
+	//Set when the user asks to leave, so the server closing the connection isn't taken for a dropped one
+	private volatile boolean leaving = false;
 	private ReceiveMessages receiveMessages = null;
+	private SendMessages sendMessages = null;
+
+	//Hands lines from the receive thread to the event dispatch thread, a batch at a time
+	private UpdateBatcher updates;
 	
-	//Stores all past client messages in a clipboard
-	private UnlimitedClipboard messageHistory;
+	//The messages this user has sent, kept between runs in stevechat.inputHistoryFile (~/.stevechat_history)
+	private InputHistory messageHistory;
+	//What has been typed into a Ctrl+R search, null while not searching, and what the message field held before it
+	//started. Only used on the event dispatch thread
+	private StringBuilder searchText = null;
+	private String searchOriginal;
 
 	//The regular expression for validating IP addresses
 	private static final String IPADDRESS_PATTERN = 
@@ -53,8 +103,18 @@ public class Client extends JFrame implements ActionListener
 		"([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\." +
 		"([01]?\\d\\d?|2[0-4]\\d|25[0-5])$";
 
-	//The client-side list of users connected to the server
-	private ArrayList<String> userList;
+	//The client-side list of users connected to the server, sorted and shown in the user list
+	private RosterModel userList;
+
+	//Version of the last roster snapshot or change applied to userList, -1 before the first snapshot
+	private long rosterVersion = -1;
+
+	//The room every client starts in, whose lines the server sends without "/in #room" in front
+	static final String LOBBY = "#lobby";
+
+	//The room this client talks in and whose users are listed, empty if it has parted every room. Only used on
+	//the event dispatch thread
+	private String currentRoom = LOBBY;
 
 	//program version
 	final static String VERSION = "v0.1b";
@@ -63,7 +123,7 @@ public class Client extends JFrame implements ActionListener
 	String clientName = "Steve";
 
 	//determines whether or not this user is connected to the server
-	private boolean connected;
+	private volatile boolean connected;
 
 	//gui declarations
 	JMenuBar menuBar;
@@ -75,9 +135,16 @@ public class Client extends JFrame implements ActionListener
 	JMenuItem connect_menu;
 	
 	JTextArea messageArea;
+	//Lines shown in the message area, oldest trimmed beyond stevechat.scrollbackLines
+	private Scrollback scrollback;
 	JTextField messageField;
+	//Shows what is being searched for while searching the history
+	JLabel searchLabel;
 	JButton sendButton;
-	JTextArea usersArea;
+	//raw, as JList only became generic after Java 6, which the client still builds for
+	@SuppressWarnings("rawtypes")
+	JList usersList;
+	JTextField userFilterField;
 
 	//configure window GUI components
 	JFrame configureFrame;
@@ -89,24 +156,36 @@ public class Client extends JFrame implements ActionListener
 	JButton connectButton;
 	
 
-	@SuppressWarnings("serial")
+	//JList and its model are raw for Java 6, see usersList
+	@SuppressWarnings({"serial", "rawtypes", "unchecked"})
 	public Client()
 	{
 		super("Steve Chat Client " + VERSION);
-		userList = new ArrayList<String>();
-		messageHistory = new UnlimitedClipboard();
+		userList = new RosterModel();
+		messageHistory = new InputHistory(Integer.getInteger("stevechat.inputHistory", InputHistory.DEFAULT_CAPACITY),
+				new File(System.getProperty("stevechat.inputHistoryFile",
+						System.getProperty("user.home") + File.separator + ".stevechat_history")));
+		updates = new UpdateBatcher(new UpdateBatcher.Handler() {
+			public void handle(List<Frame> lines) {
+				handleServerLines(lines);
+			}
+		});
 
 		//gui initialisations
 		messageArea = new JTextArea();
 		messageArea.setBackground(new Color(235, 235, 235));
+		scrollback = new Scrollback(messageArea, Integer.getInteger("stevechat.scrollbackLines", Scrollback.DEFAULT_LINES));
 		messageField = new JTextField();
 		messageField.setFocusTraversalKeysEnabled(false); //needed for TAB name completion
+		searchLabel = new JLabel();
+		searchLabel.setVisible(false);
 		sendButton = new JButton("Send");
 		connectButton = new JButton("Connect");
 		
 		//chat side 
-		usersArea =new JTextArea();
-		usersArea.setBackground(new Color(235, 235, 235));
+		usersList = new JList(userList);
+		usersList.setBackground(new Color(235, 235, 235));
+		userFilterField = new JTextField();
 		
 		menuBar = new JMenuBar();
 		JMenu fileMenu = new JMenu("File");
@@ -130,9 +209,25 @@ public class Client extends JFrame implements ActionListener
 		caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
 
 		messageField.setPreferredSize(new Dimension(800, 25));
-		usersArea.setPreferredSize(new Dimension(150, 800));
-		usersArea.setBorder(BorderFactory.createLineBorder(Color.BLACK));
-		usersArea.setEditable(false);
+		//a fixed row height lets the list lay out and paint only the rows on screen, however many users there are
+		usersList.setPrototypeCellValue("WWWWWWWWWWWWWWWW");
+		usersList.setBorder(BorderFactory.createLineBorder(Color.BLACK));
+		userFilterField.setToolTipText("Filter users");
+		userFilterField.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				userList.setFilter(userFilterField.getText());
+			}
+			public void removeUpdate(DocumentEvent e) {
+				userList.setFilter(userFilterField.getText());
+			}
+			public void changedUpdate(DocumentEvent e) {
+				userList.setFilter(userFilterField.getText());
+			}
+		});
+		JPanel usersPanel = new JPanel(new BorderLayout());
+		usersPanel.setPreferredSize(new Dimension(150, 800));
+		usersPanel.add(userFilterField, BorderLayout.NORTH);
+		usersPanel.add(new JScrollPane(usersList), BorderLayout.CENTER);
 		
 		setJMenuBar(menuBar);
 		
@@ -151,6 +246,7 @@ public class Client extends JFrame implements ActionListener
 		setLayout(new BorderLayout());
 		
 		sendPanel.add(connectButton);
+		sendPanel.add(searchLabel);
 		sendPanel.add(messageField);
 		sendPanel.add(sendButton);
 
@@ -167,7 +263,7 @@ public class Client extends JFrame implements ActionListener
 
 		//adding gui components to the frame
 		add(new JScrollPane(messageArea), BorderLayout.CENTER);
-		add(usersArea, BorderLayout.EAST);
+		add(usersPanel, BorderLayout.EAST);
 		add(sendPanel, BorderLayout.SOUTH);
 		
 		//Allows the use of up to revisit past messages using the clipboard
@@ -190,44 +286,43 @@ public class Client extends JFrame implements ActionListener
 		    }
 		};
 		
-		//Allows the use of TAB to do tab completion on names
-		Action tabComplete = new AbstractAction() {
+		//Allows the use of Ctrl+R to search back through past messages as the search is typed, starting with any text
+		//already in the field. Pressing it again finds the next older match, ESCAPE puts back what was in the field
+		//and any other key ends the search, leaving the match to be edited or sent
+		Action searchHistory = new AbstractAction() {
 		    public void actionPerformed(ActionEvent e) {
-		    	String curText = messageField.getText();
-		    	
-		    	//non-empty user-list, non-empty message
-		    	if (userList.size() == 0 || curText == null || curText == " ")
-		    		return;
-		    	
-		    	String partialName = null;
-		    	
-		    	//name entered as part of a command or mid-sentence
-		    	if (curText.contains(" "))
-		    		partialName = curText.substring(curText.lastIndexOf(" ")+1, curText.length());
-		    	
-		    	//message starts with name
-		    	else
-		    		partialName = curText;
-		    	
-		    	//Only partial names longer than 2 letters will be considered
-		    	if (partialName.length() < 3)
-		    		return;
-		    	
-		    	for (String name: userList)
+		    	if (searchText != null)
 		    	{
-		    		String tempName = name; //preserve case
-		    		if (name.toLowerCase().startsWith(partialName.toLowerCase()))
-		    		{
-		    			//complete name
-		    			messageField.setText(curText.substring(0, curText.lastIndexOf(" ")+1).concat(tempName + " "));
-		    			break;
-		    		}
+		    		String found = messageHistory.searchOlder();
+		    		if (found != null)
+		    			messageField.setText(found);
+		    		else
+		    			Toolkit.getDefaultToolkit().beep();
+		    		showSearch(found != null);
+		    		return;
 		    	}
+		    	searchOriginal = messageField.getText();
+		    	searchText = new StringBuilder(searchOriginal);
+		    	messageHistory.startSearch();
+		    	if (searchText.length() > 0)
+		    		searchHistory();
+		    	else
+		    		showSearch(true);
+		    }
+		};
+		
+		//Allows the use of TAB to do tab completion on names, pressing it again cycles through the matching names
+		final NameCompleter completer = new NameCompleter(userList);
+		Action tabComplete = new AbstractAction() {
+		    public void actionPerformed(ActionEvent e) {
+		    	String completed = completer.complete(messageField.getText());
+		    	if (completed != null)
+		    		messageField.setText(completed);
 		    }
 		};
 		
 		/*
-		 * Add the above 3 actions to the message field
+		 * Add the above 4 actions to the message field
 		 */
 		messageField.getInputMap().put(KeyStroke.getKeyStroke("UP"),
         "Go to previous message");
@@ -239,12 +334,62 @@ public class Client extends JFrame implements ActionListener
 		messageField.getActionMap().put("Go to next message",
          nextMessage);
 		
+		messageField.getInputMap().put(KeyStroke.getKeyStroke("ctrl R"),
+        "Search past messages");
+		messageField.getActionMap().put("Search past messages",
+         searchHistory);
+		
 		messageField.getInputMap().put(KeyStroke.getKeyStroke("TAB"),
         "Complete name");
 		messageField.getActionMap().put("Complete name",
          tabComplete);
 		
 		//event listeners
+		//while searching the history, what is typed goes into the search rather than the message field
+		messageField.addKeyListener(new KeyAdapter() {
+			public void keyTyped(KeyEvent e) {
+				char typed = e.getKeyChar();
+				if (searchText == null || typed < ' ' || typed == KeyEvent.VK_DELETE || typed == KeyEvent.CHAR_UNDEFINED)
+					return;
+				e.consume();
+				searchText.append(typed);
+				searchHistory();
+			}
+			public void keyPressed(KeyEvent e) {
+				if (searchText == null)
+					return;
+				switch (e.getKeyCode()) {
+				case KeyEvent.VK_BACK_SPACE:
+					e.consume();
+					if (searchText.length() > 0)
+						searchText.setLength(searchText.length() - 1);
+					if (searchText.length() > 0)
+						searchHistory();
+					else
+					{
+						messageHistory.startSearch();
+						showSearch(true);
+					}
+					break;
+				case KeyEvent.VK_ESCAPE:
+					e.consume();
+					messageField.setText(searchOriginal);
+					endSearch();
+					break;
+				case KeyEvent.VK_SHIFT:
+				case KeyEvent.VK_CONTROL:
+				case KeyEvent.VK_ALT:
+				case KeyEvent.VK_ALT_GRAPH:
+				case KeyEvent.VK_META:
+				case KeyEvent.VK_CAPS_LOCK:
+				case KeyEvent.VK_R:
+					//Ctrl+R is handled by its action, and typing R by keyTyped
+					break;
+				default:
+					endSearch();
+				}
+			}
+		});
 		messageField.addKeyListener
 		(new KeyAdapter() {
 			public void keyPressed(KeyEvent e) {
@@ -277,6 +422,33 @@ public class Client extends JFrame implements ActionListener
 	{
 		new Client();
 	}
+
+	//searches the history for what has been typed into the search and puts the match in the message field
+	private void searchHistory()
+	{
+		String found = messageHistory.search(searchText.toString());
+		if (found != null)
+			messageField.setText(found);
+		else
+			Toolkit.getDefaultToolkit().beep();
+		showSearch(found != null);
+	}
+
+	private void showSearch(boolean found)
+	{
+		searchLabel.setText((found ? "Search: " : "No match: ") + searchText);
+		searchLabel.setVisible(true);
+		searchLabel.getParent().validate();
+	}
+
+	private void endSearch()
+	{
+		if (searchText == null)
+			return;
+		searchText = null;
+		searchLabel.setVisible(false);
+		searchLabel.getParent().validate();
+	}
 	
 	public void actionPerformed(ActionEvent evt)
 	{
@@ -285,66 +457,19 @@ public class Client extends JFrame implements ActionListener
 		{
 			
 			//If not already connected
-			if (!connected)
+			if (!connected && !reconnecting)
 			{
-				//connection runs in its own thread to avoid locking up the client
-				new Thread()
-				{
-					public void run()
-					{
-						//Will attempt to connect to the server 3 times
-						int count = 0;
-						while(count < 3)
-						{
-							String retryText = (count == 0) ? "" : "(Retry # " + count + ")";
-							appendMessage("Attempting to connect to server"+ retryText);
-							try {
-								//establish connection to server
-								logConnection = new Socket(server_ip, server_port);
-								
-								outputStream = new ObjectOutputStream(logConnection.getOutputStream());
-								inputStream = new BufferedReader(new InputStreamReader(logConnection.getInputStream()));
-								receiveMessages = new ReceiveMessages();
-								//start receiving messages
-								receiveMessages.start();
-								//set connected flag
-								connected = true;
-								//breaks out of the while loop after this iteration
-								count = 99;
-								
-								//The following lines of code send a "/connect" message to the server, which
-								//lets the server know the name of this client
-								String tempBuffer = messageField.getText();
-								messageField.setText("/connect " + clientName);
-								actionPerformed(new ActionEvent(sendButton, 20, null));
-								messageHistory.removeLast(); //user doesn't need to see the /connect
-								messageField.setText(tempBuffer);
-
-								//get user list from server
-								updateUserList();
-
-								//All instances of "connect" change to "disconnect"
-								connect_menu.setText("Disconnect");
-								connectButton.setText("Disconnect");
-								messageField.requestFocus();
-							} catch (UnknownHostException e1) {
-								appendMessage("Server refused connection\n");
-							} catch (IOException e1) {
-								appendMessage("Unable to find server at " + server_ip + ":" + server_port + "\n");
-							}
-							count++;
-						}
-						
-						//connection attempt timeout
-						if (count == 3)
-							appendMessage("Connection timed out.");
-					}
-				}.start();
+				//connecting by hand always joins afresh
+				leaving = false;
+				resumeToken = null;
+				lastSequences.clear();
+				setCurrentRoom(LOBBY);
+				startConnecting(false);
 			}
 
 			else
 			{
-				disconnect();
+				leave();
 			}
 		}
 
@@ -357,8 +482,17 @@ public class Client extends JFrame implements ActionListener
 
 		if (evt.getSource() == exit_menu)
 		{
-			//Disconnect from server and close client
-			disconnect();
+			//Disconnect from server and close client, giving the sender a moment to say goodbye
+			SendMessages sender = sendMessages;
+			leave();
+			if (sender != null)
+			{
+				try {
+					sender.join(1000);
+				} catch (InterruptedException e) {
+					//closing anyway
+				}
+			}
 			System.exit(0);
 		}
 
@@ -382,12 +516,15 @@ public class Client extends JFrame implements ActionListener
 		if (evt.getSource() == sendButton)
 		{
 			String input = messageField.getText();
+			endSearch();
 
 			//don't accept empty messages
 			if (input.length() < 1)
 				return;
 			
 			messageHistory.update(input);
+			if (input.equals("/disconnect"))
+				leaving = true;
 
 			//server down
 			if (connected && logConnection.isClosed())
@@ -398,17 +535,7 @@ public class Client extends JFrame implements ActionListener
 			//send message via the message handler
 			if (connected)
 			{
-				MessageHandler message = new MessageHandler();
-					try{
-						message.setMessage(input);
-						message.setUserLabel(logConnection.getLocalAddress().toString());
-						outputStream.writeObject(message);
-						outputStream.flush();
-						outputStream.reset();
-					}
-					catch(IOException e1){
-						e1.printStackTrace();
-					}
+				send(input);
 				messageField.setText("");
 			}
 
@@ -498,13 +625,20 @@ public class Client extends JFrame implements ActionListener
 		connectButton.setText("Connect");
 		appendMessage("Disconnected from server");
 		userList.clear();
-		updateUserList();
+		rosterVersion = -1;
+		receiveMessages = null;
+
+		//the sender closes the connection once it has written whatever is queued
+		if (sendMessages != null)
+		{
+			sendMessages.finish();
+			sendMessages = null;
+			return;
+		}
 		
 		try
 		{
-			logConnection.close();
-			outputStream.close();
-			inputStream.close();
+			closeStreams();
 		}
 		
 		catch (IOException e)
@@ -513,19 +647,325 @@ public class Client extends JFrame implements ActionListener
 		}
 	}
 
+	/**
+	 * Stops any attempt to reconnect, and tells the server this client is leaving if it is connected
+	 */
+	private void leave() {
+		connectGeneration++;
+		reconnecting = false;
+		if (connected)
+		{
+			leaving = true;
+			send("/disconnect");
+			disconnect();
+		}
+		else
+		{
+			connect_menu.setText("Connect");
+			connectButton.setText("Connect");
+		}
+	}
+
+	/**
+	 * The connection dropped, or the server closed it, without the user asking. Tries to get it back, resuming
+	 * the session if the server gave this client a token
+	 */
+	private void connectionLost() {
+		disconnect();
+		appendMessage("Lost the connection to the server");
+		startConnecting(true);
+	}
+
+	/**
+	 * Connects to the server on a thread of its own, to avoid locking up the client. Waits a random and growing
+	 * time between attempts, see Backoff, and before the first one after a drop. Gives up after three attempts when
+	 * the user asked to connect, but keeps trying to get a dropped connection back until it succeeds or the user
+	 * disconnects
+	 * @param retryForever True after a dropped connection
+	 */
+	private void startConnecting(final boolean retryForever) {
+		final int generation = ++connectGeneration;
+		reconnecting = retryForever;
+		if (!retryForever)
+			backoff.reset();
+		else
+		{
+			//lets the user give up
+			connect_menu.setText("Disconnect");
+			connectButton.setText("Disconnect");
+		}
+
+		new Thread("Connect")
+		{
+			public void run()
+			{
+				for (int count = 0; retryForever || count < 3; count++)
+				{
+					if (count > 0 || retryForever)
+					{
+						long delay = backoff.next();
+						appendMessage("Retrying in " + (delay + 999) / 1000 + "s");
+						try {
+							Thread.sleep(delay);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (generation != connectGeneration)
+						return;
+
+					String retryText = (count == 0) ? "" : "(Retry # " + count + ")";
+					appendMessage("Attempting to connect to server"+ retryText);
+					try {
+						//establish connection to server, falling back to the old protocol if it doesn't know the new one
+						logConnection = new Socket(server_ip, server_port);
+						
+						if (!negotiateProtocol())
+						{
+							logConnection.close();
+							logConnection = new Socket(server_ip, server_port);
+							outputStream = new ObjectOutputStream(new BufferedOutputStream(logConnection.getOutputStream()));
+							outputStream.flush(); //the server waits for the stream header
+							inputStream = new BufferedReader(new InputStreamReader(logConnection.getInputStream()));
+						}
+						if (generation != connectGeneration)
+						{
+							logConnection.close();
+							return;
+						}
+						receiveMessages = new ReceiveMessages();
+						//start receiving messages
+						receiveMessages.start();
+						//messages are written by a thread of their own, so typing never waits on the network
+						sendMessages = new SendMessages();
+						sendMessages.start();
+						//set connected flag
+						reconnecting = false;
+						connected = true;
+						
+						//Let the server know the name of this client, or which session it is taking back. Sent
+						//directly, the user doesn't need to see it in their history
+						String token = resumeToken;
+						if (token != null)
+							send(resumeCommand(token));
+						else
+							send("/connect " + clientName);
+						//All instances of "connect" change to "disconnect"
+						connect_menu.setText("Disconnect");
+						connectButton.setText("Disconnect");
+						messageField.requestFocus();
+						return;
+					} catch (UnknownHostException e1) {
+						appendMessage("Server refused connection\n");
+					} catch (IOException e1) {
+						appendMessage("Unable to find server at " + server_ip + ":" + server_port + "\n");
+					}
+				}
+				
+				//connection attempt timeout
+				appendMessage("Connection timed out.");
+				reconnecting = false;
+				connect_menu.setText("Connect");
+				connectButton.setText("Connect");
+			}
+		}.start();
+	}
+
+	/**
+	 * Offers the binary protocol to the server and sets up the frame streams if it accepts.
+	 * @return False if the server didn't answer the hello, meaning it only understands the old object stream
+	 * @throws IOException If the hello could not be sent
+	 */
+	private boolean negotiateProtocol() throws IOException {
+		frameOutput = null;
+		frameInput = null;
+		outputStream = null;
+		inputStream = null;
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(logConnection.getOutputStream()));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(logConnection.getInputStream()));
+		out.write(Frame.clientHello());
+		out.flush();
+		
+		byte[] hello = new byte[Frame.SERVER_HELLO_SIZE];
+		try
+		{
+			logConnection.setSoTimeout(HELLO_TIMEOUT);
+			in.readFully(hello);
+			logConnection.setSoTimeout(0);
+		}
+		catch (IOException e)
+		{
+			//timed out or dropped by a server that doesn't know the hello
+			return false;
+		}
+		if (!Frame.isHello(hello, 0))
+			return false;
+		
+		clientId = ByteBuffer.wrap(hello, Frame.MAGIC.length + 1, 4).getInt();
+		frameOutput = out;
+		frameInput = in;
+		return true;
+	}
+	
+	//queue a line for the sender thread, whichever protocol is in use. Never waits for the network, a line that
+	//can't be sent is reported in the message area
+	private void send(String input) {
+		SendMessages sender = sendMessages;
+		if (sender != null)
+			sender.post(input);
+	}
+
+	//close the connection to the server and whichever streams were opened on it
+	private void closeStreams() throws IOException {
+		logConnection.close();
+		if (outputStream != null)
+			outputStream.close();
+		if (inputStream != null)
+			inputStream.close();
+		if (frameOutput != null)
+			frameOutput.close();
+		if (frameInput != null)
+			frameInput.close();
+	}
+
 	//append a message onto the message area
 	private void appendMessage(String m)
 	{
-		messageArea.setText(messageArea.getText() + m + "\n");
+		scrollback.append(m);
 	}
 
-	//update user text area
-	private void updateUserList() {
-		usersArea.setText("");
-		for (String user: userList)
+	/**
+	 * Applies a roster change sent by the server. Changes are idempotent, as the server may send one that the last
+	 * snapshot already included. If a change has been missed the whole roster is asked for again
+	 * @param directive "/roster+", "/roster-" or "/rename" followed by the version and the name(s)
+	 */
+	private void applyRosterChange(String directive) {
+		String[] parts = directive.split(" ");
+		if (parts.length < 3)
+			return;
+		long version = Long.parseLong(parts[1]);
+
+		//still waiting for the snapshot, which will include this change
+		if (rosterVersion < 0)
+			return;
+
+		if (parts[0].equals("/roster+"))
+			userList.add(parts[2]);
+		else if (parts[0].equals("/roster-"))
+			userList.remove(parts[2]);
+		else if (parts.length > 3)
+			userList.rename(parts[2], parts[3]);
+
+		if (version > rosterVersion + 1)
+			send("/roster");
+		rosterVersion = Math.max(rosterVersion, version);
+	}
+
+	/**
+	 * Applies a batch of lines received from the server, on the event dispatch thread. However many lines arrived,
+	 * the messages among them are shown with one insert, and the user list repaints once for the rows they changed.
+	 * Only directive frames are acted on, text is shown whatever it starts with
+	 * @param lines The lines, oldest first
+	 */
+	private void handleServerLines(List<Frame> lines)
+	{
+		StringBuilder messages = new StringBuilder();
+		for (Frame line: lines)
 		{
-			usersArea.setText(usersArea.getText() + user + "\n");
-		}		
+			String received = line.getPayload();
+			String room = roomOf(received);
+			String inputLine = unwrap(received);
+			if (inputLine.length() == 0)
+				continue;
+			boolean here = room.equals(currentRoom);
+
+			//server broadcasted something, shown with its room in front unless it was said in this client's room
+			if (line.getType() != Frame.TYPE_DIRECTIVE || !isCommand(inputLine))
+			{
+				if (messages.length() > 0)
+					messages.append('\n');
+				if (!here)
+					messages.append('[').append(room).append("] ");
+				messages.append(inputLine);
+				continue;
+			}
+
+			//the user list only shows the room this client talks in
+			if (!here && (inputLine.startsWith("/roster") || inputLine.startsWith("/rename ")))
+				continue;
+
+			//this client talks in another room now, after "/join #room" or "/part", or it has parted them all
+			if (inputLine.equals("/room") || inputLine.startsWith("/room "))
+			{
+				String joinedRoom = inputLine.length() > 6 ? inputLine.substring(6) : "";
+				setCurrentRoom(joinedRoom);
+				if (messages.length() > 0)
+					messages.append('\n');
+				messages.append(joinedRoom.length() > 0 ? "Now talking in " + joinedRoom
+						: "You are not in a room, /join #room to talk");
+			}
+
+			if (inputLine.startsWith("/parted "))
+			{
+				if (messages.length() > 0)
+					messages.append('\n');
+				messages.append("You left " + inputLine.substring("/parted ".length()));
+			}
+
+			//server sent command directive, join command
+			if (inputLine.startsWith("/join"))
+			{
+				userList.add(inputLine.split(" ")[1]);
+			}
+
+			//received disconnect command from server, which is only the end if the user asked to leave
+			if (inputLine.startsWith("/disconnect") && connected)
+			{
+				//show what the server said before saying goodbye
+				if (messages.length() > 0)
+					appendMessage(messages.toString());
+				messages.setLength(0);
+				if (leaving)
+					disconnect();
+				else
+					connectionLost();
+			}
+
+			//server accepted nick change, change nick client-side
+			if (inputLine.startsWith("/nick"))
+			{
+				String newName = inputLine.split(" ")[1];
+				userList.rename(clientName, newName);
+				clientName = newName;
+			}
+
+			//server is sending the whole user list, as it does when this client joins
+			if (inputLine.startsWith("/roster "))
+			{
+				String[] parts = inputLine.split(" ");
+				if (parts.length > 2)
+					userList.setAll(Arrays.asList(parts[2].split(",")));
+				else
+					userList.clear();
+				rosterVersion = Long.parseLong(parts[1]);
+			}
+
+			//a user joined, left or changed name
+			else if (inputLine.startsWith("/roster+ ") || inputLine.startsWith("/roster- ")
+					|| inputLine.startsWith("/rename "))
+				applyRosterChange(inputLine);
+
+			//older servers send the whole user list on every change
+			if (inputLine.startsWith("/updatelist"))
+			{
+				String list = inputLine.split(" ")[1];
+				userList.setAll(Arrays.asList(list.split(",")));
+			}
+		}
+
+		if (messages.length() > 0)
+			appendMessage(messages.toString());
 	}
 
 	//Determinies if a String m is a command
@@ -534,6 +974,45 @@ public class Client extends JFrame implements ActionListener
 		return m.charAt(0) == '/';
 	}
 
+	//the room a line from the server was said in, the lobby unless it starts with "/in #room "
+	private static String roomOf(String line)
+	{
+		if (!line.startsWith("/in "))
+			return LOBBY;
+		int end = line.indexOf(' ', 4);
+		return end < 0 ? line.substring(4) : line.substring(4, end);
+	}
+
+	//a line from the server without the "/in #room " in front, if it has one
+	private static String unwrap(String line)
+	{
+		if (!line.startsWith("/in "))
+			return line;
+		int end = line.indexOf(' ', 4);
+		return end < 0 ? "" : line.substring(end + 1);
+	}
+
+	//"/resume TOKEN SEQUENCE #ROOM=SEQUENCE...", giving the last broadcast received in the lobby and in each room
+	private String resumeCommand(String token)
+	{
+		StringBuilder command = new StringBuilder("/resume ").append(token).append(' ');
+		Long lobby = lastSequences.get(LOBBY);
+		command.append(lobby == null ? 0 : lobby.longValue());
+		for (Map.Entry<String, Long> room: lastSequences.entrySet())
+			if (!room.getKey().equals(LOBBY))
+				command.append(' ').append(room.getKey()).append('=').append(room.getValue());
+		return command.toString();
+	}
+
+	//changes the room this client talks in, showing it in the title. Its users are listed once the server sends them
+	private void setCurrentRoom(String room)
+	{
+		currentRoom = room;
+		userList.clear();
+		rosterVersion = -1;
+		setTitle("Steve Chat Client " + VERSION + (room.length() > 0 ? " - " + room : ""));
+	}
+
 	private void showConfigureGUI()
 	{
 		//Generated by JGuiMaker v1.2b
@@ -579,69 +1058,178 @@ public class Client extends JFrame implements ActionListener
 		configureFrame.requestFocus();
 	}
 
-	//This thread runs in the background and waits for commands from the server
-	private class ReceiveMessages extends Thread {
+	/**
+	 * Writes queued messages to the server. Every message waiting when the thread wakes up is written into the
+	 * buffered stream and flushed once, so a burst goes out in one write. A failed write is reported on the event
+	 * dispatch thread, which disconnects
+	 */
+	private class SendMessages extends Thread {
 
-		public void run(){
-			String inputLine;
-			try {
-				while((inputLine = inputStream.readLine()) != null) {
-					//This is a hack. TODO: Find out why the server is sending a blank message
-					if (inputLine.equals(""))
-						continue;
+		//Queued by finish() to close the connection once everything before it has been written
+		private final String finished = new String("/stop");
+
+		private LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+
+		//The connection this thread writes to, kept so a reconnect can't redirect it
+		private Socket socket = logConnection;
+		private DataOutputStream frames = frameOutput;
+		private ObjectOutputStream objects = outputStream;
+		private int sequence = 0;
+
+		SendMessages() {
+			super("SendMessages");
+			setDaemon(true);
+		}
+
+		void post(String input) {
+			queue.offer(input);
+		}
 
-					//server sent command directive
-					if (isCommand(inputLine))
+		void finish() {
+			queue.offer(finished);
+		}
+
+		public void run() {
+			List<String> batch = new ArrayList<String>();
+			boolean open = true;
+			try {
+				while (open)
+				{
+					batch.add(queue.take());
+					queue.drainTo(batch);
+					for (String input: batch)
 					{
-						//join command
-						if (inputLine.startsWith("/join"))
+						if (input == finished)
 						{
-							String username = inputLine.split(" ")[1];
-							userList.add(username);
-							updateUserList();
+							open = false;
+							break;
 						}
-
-						//received disconnect command from server
-						if (inputLine.startsWith("/disconnect"))
+						write(input);
+					}
+					flush();
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				//client is closing
+			} catch (final IOException e) {
+				//a connection that has already been given up on needs no report
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (connected && sendMessages == SendMessages.this)
 						{
-							disconnect();
+							appendMessage("Could not send message: " + e.getMessage());
+							connectionLost();
 						}
+					}
+				});
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
 
-						//server accepted nick change, change nick client-side
-						if (inputLine.startsWith("/nick"))
-						{
-							String newName = inputLine.split(" ")[1];
-							userList.remove(clientName);
-							clientName = newName;
-							userList.add(clientName);
-							updateUserList();
-						}
+		private void write(String input) throws IOException {
+			if (frames != null)
+				frames.write(Frame.encode(Frame.TYPE_MESSAGE, ++sequence, clientId, input));
+			else
+			{
+				MessageHandler message = new MessageHandler();
+				message.setMessage(input);
+				message.setUserLabel(socket.getLocalAddress().toString());
+				objects.writeObject(message);
+				objects.reset();
+			}
+		}
 
-						//server is sending updated userlist
-						if (inputLine.startsWith("/updatelist"))
-						{
-							String list = inputLine.split(" ")[1];
-							userList.clear();
-							String[] names = list.split(",");
+		private void flush() throws IOException {
+			if (frames != null)
+				frames.flush();
+			else
+				objects.flush();
+		}
+	}
 
-							for (int i = 0; i < names.length; i++)
-								userList.add(names[i]);
+	//This thread runs in the background and waits for commands from the server
+	private class ReceiveMessages extends Thread {
 
-							updateUserList();
-						}
+		//The streams this thread reads from, kept so a reconnect can't redirect it. The sender closes the connection
+		private DataInputStream frames = frameInput;
+		private BufferedReader lines = inputStream;
+
+		//read the next line from the server, whichever protocol is in use. An old server's lines are untyped, so
+		//those starting with '/' are taken to be directives as they always were
+		private Frame readLine() throws IOException {
+			if (frames == null)
+			{
+				String line = lines.readLine();
+				if (line == null)
+					return null;
+				byte type = line.startsWith("/") ? Frame.TYPE_DIRECTIVE : Frame.TYPE_TEXT;
+				return new Frame(type, 0, 0, line);
+			}
+			Frame frame = Frame.read(frames);
+			if (frame == null)
+				return null;
+			//broadcasts are numbered by their room, lines for this client only are not
+			if (frame.getSequence() > 0)
+				lastSequences.put(roomOf(frame.getPayload()), Long.valueOf(frame.getSequence()));
+			return frame;
+		}
+
+		public void run(){
+			Frame frame;
+			try {
+				while((frame = readLine()) != null) {
+					backoff.reset();
+					String inputLine = frame.getPayload();
+
+					//This is a hack. TODO: Find out why the server is sending a blank message
+					if (inputLine.equals(""))
+						continue;
+
+					//text is only ever shown
+					if (frame.getType() != Frame.TYPE_DIRECTIVE)
+					{
+						updates.post(frame);
+						continue;
+					}
+
+					//what is needed to resume the session is kept straight away, in case the connection drops
+					//before the event dispatch thread gets round to it
+					String directive = unwrap(inputLine);
+					if (inputLine.startsWith("/resume-token "))
+						resumeToken = inputLine.substring("/resume-token ".length());
+					else if (directive.startsWith("/seq "))
+						lastSequences.put(roomOf(inputLine), Long.valueOf(directive.substring("/seq ".length())));
+					else if (inputLine.equals("/resume-failed"))
+					{
+						//the session is gone, join afresh
+						resumeToken = null;
+						lastSequences.clear();
+						send("/connect " + clientName);
 					}
-					//server broadcasted something
+					//handled on the event dispatch thread, in batches
 					else
-						appendMessage(inputLine);
+					{
+						if (inputLine.startsWith("/parted "))
+							lastSequences.remove(inputLine.substring("/parted ".length()));
+						updates.post(frame);
+					}
 				}
 
-				logConnection.close();
-				outputStream.close();
-				inputStream.close();
-
 			} catch (IOException e) {
-
+				//connection dropped
 			}
+
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					//only a connection the user still wants is got back
+					if (connected && receiveMessages == ReceiveMessages.this && !leaving)
+						connectionLost();
+				}
+			});
 		}
 	}
 }
@@ -0,0 +1,300 @@
+package chat.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The messages this user has typed, for UP and DOWN to step through and Ctrl+R to search as the user types, the
+ * way a shell's reverse incremental search does. Only the last capacity
+ * messages are kept, in a ring, and a message that repeats the one before it is not kept twice, so the memory used
+ * stays the same however long the client runs.
+ *
+ * "/oper" is never kept, as it carries the operator password, which doesn't belong in a file anybody who can read
+ * the user's home directory can read.
+ *
+ * The history is kept in a file of one message per line, so it survives a restart. The file is read at startup and
+ * each new message appended to it on a background thread, so the UI never waits for the disk; until the file has
+ * been read the history holds only what has been typed since. Whenever the file holds twice as many lines as are
+ * kept it is rewritten with just the ones kept, at startup or as messages are appended.
+ */
+class InputHistory {
+
+	//Default number of messages kept, can be changed with the system property stevechat.inputHistory
+	static final int DEFAULT_CAPACITY = 500;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String[] ring;
+	//Index in ring of the oldest message, and how many are kept
+	private int start = 0;
+	private int count = 0;
+	//Where UP and DOWN are in the history, count when past the newest message
+	private int position = 0;
+
+	//The text searched for, in lower case, and the index of the message it last found, count if none yet
+	private String searchQuery = "";
+	private int searchIndex;
+
+	//The history file, null once it can't be read or written
+	private File file;
+	//Reads the file and then appends to it, one task at a time
+	private ExecutorService disk;
+	private Future<List<String>> loading;
+	//Lines in the file, only used on the disk thread
+	private int fileLines;
+
+	/**
+	 * Starts loading the history file
+	 * @param capacity The most messages kept
+	 * @param file The history file, or null to keep the history in memory only
+	 */
+	InputHistory(int capacity, final File file)
+	{
+		ring = new String[Math.max(1, capacity)];
+		this.file = file;
+		if (file == null)
+			return;
+
+		disk = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "InputHistory");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		loading = disk.submit(new Callable<List<String>>() {
+			public List<String> call() throws IOException {
+				return load(file);
+			}
+		});
+	}
+
+	/**
+	 * Adds a message the user sent, unless it is "/oper" or repeats the one before it, and goes back to after the
+	 * newest message
+	 * @param s The message
+	 */
+	void update(String s)
+	{
+		loaded();
+		position = count;
+		if (isSecret(s) || (count > 0 && s.equals(get(count - 1))))
+			return;
+		add(s);
+		position = count;
+		append(s);
+	}
+
+	/**
+	 * @return The message before the current one, or null at the oldest
+	 */
+	String undo()
+	{
+		loaded();
+		if (position == 0)
+			return null;
+		return get(--position);
+	}
+
+	/**
+	 * @return The message after the current one, or null past the newest
+	 */
+	String redo()
+	{
+		loaded();
+		if (position < count - 1)
+			return get(++position);
+		position = count;
+		return null;
+	}
+
+	/**
+	 * Starts a new search, back from the newest message
+	 */
+	void startSearch()
+	{
+		loaded();
+		searchQuery = "";
+		searchIndex = count;
+	}
+
+	/**
+	 * Searches back for a message containing some text, ignoring case, as the user types it. While the text only
+	 * grows the message found so far is kept for as long as it still contains it, otherwise the search starts again
+	 * from the newest message
+	 * @param text Everything typed into the search so far
+	 * @return The newest message containing the text no newer than the last one found, or null if there is none
+	 */
+	String search(String text)
+	{
+		loaded();
+		String query = text.toLowerCase();
+		int from = query.startsWith(searchQuery) ? Math.min(searchIndex, count - 1) : count - 1;
+		searchQuery = query;
+		return find(from);
+	}
+
+	/**
+	 * @return The next older message containing the text searched for, or null if there is none
+	 */
+	String searchOlder()
+	{
+		loaded();
+		return find(Math.min(searchIndex, count) - 1);
+	}
+
+	//finds the newest message at or before from containing the search, leaving UP and DOWN there
+	private String find(int from)
+	{
+		for (int i = from; i >= 0; i--)
+		{
+			if (get(i).toLowerCase().contains(searchQuery))
+			{
+				searchIndex = i;
+				position = i;
+				return get(i);
+			}
+		}
+		return null;
+	}
+
+	//true for a message carrying a password, which is never kept
+	private static boolean isSecret(String s)
+	{
+		return s.equals("/oper") || s.startsWith("/oper ");
+	}
+
+	private String get(int index)
+	{
+		return ring[(start + index) % ring.length];
+	}
+
+	private void add(String s)
+	{
+		if (count < ring.length)
+			ring[(start + count++) % ring.length] = s;
+		else
+		{
+			ring[start] = s;
+			start = (start + 1) % ring.length;
+		}
+	}
+
+	//once the file has been read, puts what it held before anything typed since. Never waits for it
+	private void loaded()
+	{
+		if (loading == null || !loading.isDone())
+			return;
+		List<String> saved = null;
+		try {
+			saved = loading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			file = null;
+		}
+		loading = null;
+		if (saved == null)
+			return;
+
+		String[] typed = new String[count];
+		for (int i = 0; i < count; i++)
+			typed[i] = get(i);
+		start = 0;
+		count = 0;
+		for (String s: saved)
+			add(s);
+		for (String s: typed)
+			add(s);
+		position = count;
+		searchIndex = count;
+	}
+
+	//reads the history file on the disk thread, rewriting it if it has grown to twice what is kept
+	private List<String> load(File history) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		fileLines = 0;
+		if (!history.exists())
+			return lines;
+
+		int read = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(history), UTF8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				read++;
+				if (line.length() == 0 || isSecret(line) || (!lines.isEmpty() && line.equals(lines.get(lines.size() - 1))))
+					continue;
+				lines.add(line);
+				//only the newest lines are kept, drop the rest as we go
+				if (lines.size() > ring.length * 2)
+					lines.subList(0, ring.length).clear();
+			}
+		} finally {
+			in.close();
+		}
+		if (lines.size() > ring.length)
+			lines.subList(0, lines.size() - ring.length).clear();
+
+		if (read >= ring.length * 2)
+		{
+			File compacted = new File(history.getPath() + ".tmp");
+			write(compacted, lines, false);
+			if (!history.delete() || !compacted.renameTo(history))
+				throw new IOException("Could not replace " + history);
+			read = lines.size();
+		}
+		fileLines = read;
+		return lines;
+	}
+
+	//appends a message to the file on the disk thread, compacting it once it has grown to twice what is kept
+	private void append(final String s)
+	{
+		if (file == null)
+			return;
+		final File target = file;
+		disk.execute(new Runnable() {
+			public void run() {
+				try {
+					List<String> line = new ArrayList<String>(1);
+					line.add(s);
+					write(target, line, true);
+					if (++fileLines >= ring.length * 2)
+						load(target);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	private static void write(File file, List<String> lines, boolean append) throws IOException
+	{
+		Writer out = new OutputStreamWriter(new FileOutputStream(file, append), UTF8);
+		try {
+			for (String line: lines)
+				out.write(line + "\n");
+		} finally {
+			out.close();
+		}
+	}
+}
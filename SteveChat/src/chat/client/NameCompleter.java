@@ -0,0 +1,55 @@
+package chat.client;
+
+/**
+ * TAB completion of nicknames in the message field. The last word typed is completed to the first user whose
+ * name starts with it, ignoring case; pressing TAB again without editing the text moves on to the next such user,
+ * wrapping round after the last. Works mid-sentence and on command arguments such as "/msg st" or "/slap st",
+ * where an empty argument cycles through every user
+ */
+class NameCompleter {
+
+	private RosterModel roster;
+
+	//The field's text after the last completion, so the next TAB can tell it should cycle
+	private String completedText = null;
+	//The text before the completed word, the prefix that was typed and the name it was last completed to
+	private String before;
+	private String prefix;
+	private String lastName;
+
+	/**
+	 * @param roster The users to complete from
+	 */
+	NameCompleter(RosterModel roster)
+	{
+		this.roster = roster;
+	}
+
+	/**
+	 * @param text The message field's text
+	 * @return The text with its last word completed, or null if there is nothing to complete it to
+	 */
+	String complete(String text)
+	{
+		String name;
+		if (text.equals(completedText))
+			name = roster.nextWithPrefix(prefix, lastName);
+		else
+		{
+			int start = text.lastIndexOf(' ') + 1;
+			String word = text.substring(start);
+			//a command name is not a nickname, and an empty word is only completed as a command's argument
+			if (word.startsWith("/") || (word.length() == 0 && !text.startsWith("/")))
+				return null;
+			before = text.substring(0, start);
+			prefix = word;
+			name = roster.nextWithPrefix(prefix, null);
+		}
+
+		if (name == null)
+			return null;
+		lastName = name;
+		completedText = before + name + " ";
+		return completedText;
+	}
+}
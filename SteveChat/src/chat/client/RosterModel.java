@@ -0,0 +1,218 @@
+package chat.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The users in the channel, kept sorted so a join, part or rename is a binary search and one insert or removal
+ * rather than a rebuild of the list. Only names containing the filter text are shown; with no filter the shown
+ * names are the full list itself. Each change is reported as the single row that changed, so a JList showing the
+ * model only repaints rows that are on screen.
+ *
+ * Must only be used on the event dispatch thread. The model is raw, as AbstractListModel only became generic after
+ * Java 6, which the client still builds for.
+ */
+@SuppressWarnings({"serial", "rawtypes"})
+class RosterModel extends AbstractListModel {
+
+	//Case-insensitive order, with names differing only in case kept apart
+	static final Comparator<String> ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int order = a.compareToIgnoreCase(b);
+			return order != 0 ? order : a.compareTo(b);
+		}
+	};
+
+	private ArrayList<String> names = new ArrayList<String>();
+	//The names shown, the same list as names when there is no filter
+	private ArrayList<String> shown = names;
+	//Lower case filter text, empty to show everybody
+	private String filter = "";
+
+	/**
+	 * @return Every name, sorted, whatever the filter
+	 */
+	List<String> names()
+	{
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * @param name A name
+	 * @return True if the name is in the list
+	 */
+	boolean contains(String name)
+	{
+		return Collections.binarySearch(names, name, ORDER) >= 0;
+	}
+
+	/**
+	 * Finds a name starting with some text, ignoring case. Names sharing a prefix are next to each other in the
+	 * sorted list, so this is a binary search however many users there are
+	 * @param prefix The start of the name
+	 * @param after The name found last time, to step to the next one after it, or null for the first
+	 * @return The next name with the prefix, wrapping round to the first after the last, or null if there is none
+	 */
+	String nextWithPrefix(String prefix, String after)
+	{
+		int index = firstWithPrefix(prefix);
+		if (after != null)
+		{
+			int last = Collections.binarySearch(names, after, ORDER);
+			int next = last >= 0 ? last + 1 : -last - 1;
+			if (next < names.size() && hasPrefix(names.get(next), prefix))
+				index = next;
+		}
+		if (index < names.size() && hasPrefix(names.get(index), prefix))
+			return names.get(index);
+		return null;
+	}
+
+	/**
+	 * Adds a name if it is missing
+	 * @param name The name
+	 */
+	void add(String name)
+	{
+		int index = Collections.binarySearch(names, name, ORDER);
+		if (index >= 0)
+			return;
+		names.add(-index - 1, name);
+		if (shown == names)
+			fireIntervalAdded(this, -index - 1, -index - 1);
+		else if (matches(name))
+		{
+			int row = -Collections.binarySearch(shown, name, ORDER) - 1;
+			shown.add(row, name);
+			fireIntervalAdded(this, row, row);
+		}
+	}
+
+	/**
+	 * Removes a name if it is present
+	 * @param name The name
+	 */
+	void remove(String name)
+	{
+		int index = Collections.binarySearch(names, name, ORDER);
+		if (index < 0)
+			return;
+		names.remove(index);
+		if (shown == names)
+			fireIntervalRemoved(this, index, index);
+		else
+		{
+			int row = Collections.binarySearch(shown, name, ORDER);
+			if (row >= 0)
+			{
+				shown.remove(row);
+				fireIntervalRemoved(this, row, row);
+			}
+		}
+	}
+
+	/**
+	 * Replaces a name, or just adds the new one if the old one is missing
+	 * @param oldName The name to remove
+	 * @param newName The name to add
+	 */
+	void rename(String oldName, String newName)
+	{
+		remove(oldName);
+		add(newName);
+	}
+
+	/**
+	 * Replaces every name, as when the server sends the whole list
+	 * @param all The new names, in any order
+	 */
+	void setAll(Collection<String> all)
+	{
+		int oldSize = shown.size();
+		names.clear();
+		names.addAll(all);
+		Collections.sort(names, ORDER);
+		//the server never repeats a name, but an old server's list might
+		for (int i = names.size() - 1; i > 0; i--)
+			if (names.get(i).equals(names.get(i - 1)))
+				names.remove(i);
+		refilter(oldSize);
+	}
+
+	/**
+	 * Removes every name
+	 */
+	void clear()
+	{
+		int oldSize = shown.size();
+		names.clear();
+		refilter(oldSize);
+	}
+
+	/**
+	 * Shows only the names that contain some text, ignoring case
+	 * @param text The text, empty to show everybody
+	 */
+	void setFilter(String text)
+	{
+		int oldSize = shown.size();
+		filter = text.trim().toLowerCase();
+		refilter(oldSize);
+	}
+
+	public int getSize()
+	{
+		return shown.size();
+	}
+
+	public Object getElementAt(int index)
+	{
+		return shown.get(index);
+	}
+
+	//the index of the first name that isn't before prefix, ignoring case
+	private int firstWithPrefix(String prefix)
+	{
+		int low = 0;
+		int high = names.size();
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (names.get(middle).compareToIgnoreCase(prefix) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private static boolean hasPrefix(String name, String prefix)
+	{
+		return name.regionMatches(true, 0, prefix, 0, prefix.length());
+	}
+
+	private boolean matches(String name)
+	{
+		return name.toLowerCase().contains(filter);
+	}
+
+	//rebuilds the shown names after the filter or the whole list changed, oldSize being how many were shown before
+	private void refilter(int oldSize)
+	{
+		if (filter.length() == 0)
+			shown = names;
+		else
+		{
+			shown = new ArrayList<String>();
+			for (String name: names)
+				if (matches(name))
+					shown.add(name);
+		}
+		fireContentsChanged(this, 0, Math.max(oldSize, shown.size()) - 1);
+	}
+}
@@ -0,0 +1,73 @@
+package chat.client;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+/**
+ * The lines shown in a chat text area, appended to the end of its document without rebuilding the text and limited
+ * to a number of lines. Once the area holds an eighth more than the limit the oldest lines are cut in one go, so
+ * a client left open on a busy channel for days costs no more per line than a fresh one
+ */
+class Scrollback {
+
+	//Default number of lines kept, can be changed with the system property stevechat.scrollbackLines
+	static final int DEFAULT_LINES = 5000;
+
+	private JTextArea area;
+	private int maxLines;
+
+	/**
+	 * @param area The text area to show the lines in
+	 * @param maxLines The most lines kept once the oldest have been trimmed
+	 */
+	Scrollback(JTextArea area, int maxLines)
+	{
+		this.area = area;
+		this.maxLines = Math.max(1, maxLines);
+	}
+
+	/**
+	 * Adds a line at the bottom of the area. Can be called from any thread, the document is only changed on the
+	 * event dispatch thread
+	 * @param line The line, which may itself hold several lines
+	 */
+	void append(final String line)
+	{
+		if (!SwingUtilities.isEventDispatchThread())
+		{
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					append(line);
+				}
+			});
+			return;
+		}
+
+		Document document = area.getDocument();
+		try {
+			document.insertString(document.getLength(), line + "\n", null);
+		} catch (BadLocationException e) {
+			//the end of the document is always a valid location
+		}
+		trim();
+	}
+
+	//cuts the oldest lines in one removal once there are enough of them to be worth it
+	private void trim()
+	{
+		Document document = area.getDocument();
+		Element root = document.getDefaultRootElement();
+		//the document always ends with an empty line after the last newline
+		int lines = root.getElementCount() - 1;
+		if (lines <= maxLines + maxLines / 8)
+			return;
+		try {
+			document.remove(0, root.getElement(lines - maxLines - 1).getEndOffset());
+		} catch (BadLocationException e) {
+			area.setText("");
+		}
+	}
+}
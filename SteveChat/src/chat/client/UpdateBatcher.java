@@ -0,0 +1,84 @@
+package chat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+import chat.Frame;
+
+/**
+ * Carries lines from the receive thread to the event dispatch thread in batches. The first line queued after a
+ * batch starts a short timer, and everything that arrives before it fires is handed over in one go, so a burst of
+ * thousands of lines a second costs the UI at most one update per frame instead of one per line. Each line stays
+ * in the frame it arrived in, so the UI can tell the server's directives from text to show
+ */
+class UpdateBatcher {
+
+	//Time between batches, about one screen refresh
+	static final int FRAME_MILLIS = 16;
+
+	/**
+	 * Handles a batch of lines on the event dispatch thread
+	 */
+	interface Handler {
+		/**
+		 * @param lines Every line queued since the last batch, oldest first
+		 */
+		void handle(List<Frame> lines);
+	}
+
+	//Waits out the frame before handing a batch to the event dispatch thread
+	private static final Timer TIMER = new Timer("UpdateBatcher", true);
+
+	private ConcurrentLinkedQueue<Frame> pending = new ConcurrentLinkedQueue<Frame>();
+	//Set while a batch is waiting for the timer, so only the first line of a batch starts it
+	private AtomicBoolean scheduled = new AtomicBoolean(false);
+	private Handler handler;
+	private Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param handler Called with each batch on the event dispatch thread
+	 */
+	UpdateBatcher(Handler handler)
+	{
+		this.handler = handler;
+	}
+
+	/**
+	 * Queues a line for the next batch. Can be called from any thread
+	 * @param line The line
+	 */
+	void post(Frame line)
+	{
+		pending.offer(line);
+		if (scheduled.compareAndSet(false, true))
+		{
+			TIMER.schedule(new TimerTask() {
+				public void run() {
+					SwingUtilities.invokeLater(drain);
+				}
+			}, FRAME_MILLIS);
+		}
+	}
+
+	private void drain()
+	{
+		//cleared before draining, so a line queued from here on either is drained now or starts the next batch
+		scheduled.set(false);
+		List<Frame> lines = new ArrayList<Frame>();
+		Frame line;
+		while ((line = pending.poll()) != null)
+			lines.add(line);
+		if (!lines.isEmpty())
+			handler.handle(lines);
+	}
+}
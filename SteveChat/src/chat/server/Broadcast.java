@@ -0,0 +1,112 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+import chat.Frame;
+
+/**
+ * One line being sent to every member of a room. The line is encoded at most once for each wire format, the
+ * first time a client speaking that format needs it, and the same SharedBuffer is queued for every client that
+ * speaks it. Old clients get the text and a line break in the platform charset, exactly as a PrintWriter would
+ * have sent it; binary clients get a single frame carrying the broadcast's sequence number and the connection id of
+ * the user who said it. Lines users said are always TYPE_TEXT, so nothing a user types can reach a client as a
+ * directive, while the server's own lines are TYPE_DIRECTIVE if they start with '/'.
+ *
+ * Only used while its room holds its lock, which also guards the encoders.
+ */
+class Broadcast {
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private String text;
+	private byte type;
+	private int sequence;
+	private int sender;
+	//When the broadcast was made, stamped on its buffers so writers can time how long they took to go out
+	private long createdAt = System.nanoTime();
+	private CharsetEncoder textEncoder;
+	private CharsetEncoder frameEncoder;
+	private SharedBuffer textBuffer = null;
+	private SharedBuffer frameBuffer = null;
+
+	/**
+	 * @param text The line to send
+	 * @param type Frame.TYPE_TEXT or Frame.TYPE_DIRECTIVE
+	 * @param sequence The room's number for this broadcast
+	 * @param sender The connection id of the user who said the line, 0 for the server
+	 * @param textEncoder Encoder for the platform charset, used for old clients
+	 * @param frameEncoder UTF-8 encoder, used for frames
+	 */
+	Broadcast(String text, byte type, int sequence, int sender, CharsetEncoder textEncoder,
+			CharsetEncoder frameEncoder) {
+		this.text = text;
+		this.type = type;
+		this.sequence = sequence;
+		this.sender = sender;
+		this.textEncoder = textEncoder;
+		this.frameEncoder = frameEncoder;
+	}
+
+	/**
+	 * @param binaryProtocol True for a client that speaks the binary protocol
+	 * @return The encoded line. The broadcast keeps its reference, a queue takes its own
+	 */
+	SharedBuffer encoded(boolean binaryProtocol) {
+		if (binaryProtocol)
+		{
+			if (frameBuffer == null)
+				frameBuffer = encodeFrames();
+			return frameBuffer;
+		}
+		if (textBuffer == null)
+			textBuffer = encodeText();
+		return textBuffer;
+	}
+
+	/**
+	 * Drops the broadcast's references once every client has been given the line
+	 */
+	void release() {
+		if (textBuffer != null)
+			textBuffer.release();
+		if (frameBuffer != null)
+			frameBuffer.release();
+		textBuffer = null;
+		frameBuffer = null;
+	}
+
+	private SharedBuffer encodeText() {
+		int chars = text.length() + LINE_SEPARATOR.length();
+		SharedBuffer buffer = SharedBuffer.allocate((int)Math.ceil(chars * textEncoder.maxBytesPerChar()));
+		ByteBuffer out = ByteBuffer.wrap(buffer.array());
+		textEncoder.reset();
+		check(textEncoder.encode(CharBuffer.wrap(text), out, false));
+		check(textEncoder.encode(CharBuffer.wrap(LINE_SEPARATOR), out, true));
+		check(textEncoder.flush(out));
+		buffer.setLength(out.position());
+		buffer.setBroadcastAt(createdAt);
+		return buffer;
+	}
+
+	private SharedBuffer encodeFrames() {
+		int capacity = 4 + Frame.HEADER_SIZE + (int)Math.ceil(text.length() * frameEncoder.maxBytesPerChar());
+		SharedBuffer buffer = SharedBuffer.allocate(capacity);
+		ByteBuffer out = ByteBuffer.wrap(buffer.array());
+		//a frame is a line already, it needs no line break at the end
+		int end = text.length();
+		while (end > 0 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r'))
+			end--;
+		Frame.encode(type, sequence, sender, CharBuffer.wrap(text, 0, end), frameEncoder, out);
+		buffer.setLength(out.position());
+		buffer.setBroadcastAt(createdAt);
+		return buffer;
+	}
+
+	private static void check(CoderResult result) {
+		//buffers are sized for the worst case and the encoders replace what they can't map
+		if (result.isOverflow())
+			throw new IllegalStateException("Broadcast buffer too small");
+	}
+}
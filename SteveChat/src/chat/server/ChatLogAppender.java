@@ -0,0 +1,176 @@
+package chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the chat log from a single background thread. Clients only put records on a queue, the appender
+ * writes whatever has queued up as one batch, so the log is written in the order records were appended and
+ * logging costs the message path no system calls. Appending never waits: if the disk falls so far behind that
+ * the queue is full, records are dropped and the caller told so, rather than every client thread and event loop
+ * stalling on the log. Records are written to a SegmentedChatLog, stamped with the
+ * time they were written and numbered in order.
+ *
+ * How much can be lost in a crash is set by the durability policy: written records are flushed once there are
+ * flushRecords of them or flushMillis has passed since the last flush, and if syncMillis is above 0 flushed data
+ * is forced to disk within that long.
+ */
+class ChatLogAppender implements Runnable {
+	//Most records written per batch, and most that may wait before records are dropped
+	private static final int MAX_BATCH = 1024;
+	private static final int MAX_QUEUED = 64 * 1024;
+
+	//Tells the appender thread to finish up
+	private static final String CLOSE = new String("close");
+
+	private LinkedBlockingQueue<String> records = new LinkedBlockingQueue<String>(MAX_QUEUED);
+	private File directory;
+	private long segmentBytes;
+	private int indexInterval;
+	private long retainBytes;
+	private int flushRecords;
+	private long flushMillis;
+	private long syncMillis;
+	private Thread thread;
+
+	//Set if the log can't be written, records are then dropped rather than left to fill the queue
+	private volatile boolean failed = false;
+
+	/**
+	 * @param directory The directory the log segments are kept in, added to if it already holds some
+	 * @param segmentBytes The size at which a segment is closed and the next one started
+	 * @param indexInterval The number of bytes between entries in a segment's index
+	 * @param retainBytes The most bytes kept in older segments, the oldest being deleted first, 0 to keep them all
+	 * @param flushRecords Flush once this many records have been written since the last flush
+	 * @param flushMillis Flush once written records have waited this long
+	 * @param syncMillis Force written data to disk at most this often, 0 to leave it to the operating system
+	 */
+	ChatLogAppender(File directory, long segmentBytes, int indexInterval, long retainBytes, int flushRecords,
+			long flushMillis, long syncMillis) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.indexInterval = indexInterval;
+		this.retainBytes = retainBytes;
+		this.flushRecords = Math.max(1, flushRecords);
+		this.flushMillis = flushMillis;
+		this.syncMillis = syncMillis;
+	}
+
+	/**
+	 * Starts the appender thread
+	 */
+	void start() {
+		thread = new Thread(this, "ChatLogAppender");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a record for the log, never waiting
+	 * @param record The text to log, a trailing line break is dropped
+	 * @return False if the record was dropped because the disk has fallen MAX_QUEUED records behind
+	 */
+	boolean append(String record) {
+		if (failed)
+			return true;
+		return records.offer(record);
+	}
+
+	/**
+	 * Writes everything queued so far, forces it to disk and stops the appender thread
+	 */
+	void close() {
+		if (failed)
+			return;
+		try {
+			//the only record worth waiting for room for, everything before it is written first
+			records.put(CLOSE);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		SegmentedChatLog log = null;
+		try {
+			log = new SegmentedChatLog(directory, segmentBytes, indexInterval, retainBytes);
+			List<String> batch = new ArrayList<String>(MAX_BATCH);
+			int unflushed = 0;
+			boolean unsynced = false;
+			long lastFlush = System.currentTimeMillis();
+			long lastSync = lastFlush;
+			boolean open = true;
+
+			while (open)
+			{
+				//wait for records, but no longer than the next flush or sync is due
+				long now = System.currentTimeMillis();
+				long wait = Long.MAX_VALUE;
+				if (unflushed > 0)
+					wait = Math.min(wait, lastFlush + flushMillis - now);
+				if (unsynced)
+					wait = Math.min(wait, lastSync + syncMillis - now);
+
+				String first = records.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+				if (first != null)
+				{
+					long time = System.currentTimeMillis();
+					batch.add(first);
+					records.drainTo(batch, MAX_BATCH - 1);
+					for (String record: batch)
+					{
+						if (record == CLOSE)
+							open = false;
+						else
+						{
+							if (record.endsWith("\n"))
+								record = record.substring(0, record.length() - 1);
+							log.append(time, record);
+							unflushed++;
+						}
+					}
+					batch.clear();
+				}
+
+				now = System.currentTimeMillis();
+				if (unflushed > 0 && (!open || unflushed >= flushRecords || now - lastFlush >= flushMillis))
+				{
+					log.flush();
+					unflushed = 0;
+					lastFlush = now;
+					unsynced = syncMillis > 0;
+				}
+				if (unsynced && (!open || now - lastSync >= syncMillis))
+				{
+					log.sync();
+					unsynced = false;
+					lastSync = now;
+				}
+				else if (!unsynced)
+					lastSync = now;
+			}
+			log.close();
+			log = null;
+		} catch (IOException e) {
+			failed = true;
+			records.clear();
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			//server is shutting down
+		} finally {
+			if (log != null)
+			{
+				try {
+					log.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
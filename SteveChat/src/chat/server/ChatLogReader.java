@@ -0,0 +1,339 @@
+package chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads records back out of a SegmentedChatLog. Segments and their indexes are memory-mapped, a lookup binary
+ * searches the segments by the sequence number in their names or by the timestamp of their first record, then
+ * binary searches that segment's index for the closest entry at or before the wanted record and scans forward from
+ * there, so it touches at most indexInterval bytes that it doesn't return.
+ *
+ * Reading is safe while the server is appending; a record that is only partly written is treated as the end
+ * of the log. Only the newest segment still changes, so the mappings of older ones are kept for later lookups, and
+ * the newest is only mapped again once it has grown. Mappings of segments the server has deleted are dropped.
+ */
+public class ChatLogReader {
+	private File directory;
+
+	//Mappings of segments and indexes that are no longer written to
+	private ConcurrentHashMap<File, MappedByteBuffer> closed = new ConcurrentHashMap<File, MappedByteBuffer>();
+	//Mappings of the newest segment and its index, good until the file grows
+	private ConcurrentHashMap<File, MappedByteBuffer> open = new ConcurrentHashMap<File, MappedByteBuffer>();
+	//The timestamp of the first record in each segment that has one
+	private ConcurrentHashMap<File, Long> firstTimestamps = new ConcurrentHashMap<File, Long>();
+	//The oldest segment seen, anything older has been deleted and is forgotten when this moves on
+	private volatile long oldest = Long.MIN_VALUE;
+
+	/**
+	 * @param directory The directory the server writes its chat log segments to
+	 */
+	public ChatLogReader(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param sequence The sequence number to start at
+	 * @param max The most records to return
+	 * @return Up to max records starting with the first one numbered sequence or later
+	 * @throws IOException If a segment could not be read
+	 */
+	public List<ChatLogRecord> readFrom(long sequence, int max) throws IOException {
+		List<File> segments = list();
+		int low = 1;
+		int high = segments.size() - 1;
+		int start = 0;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			if (firstSequence(segments.get(mid)) <= sequence)
+			{
+				start = mid;
+				low = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+		return read(segments, start, sequence, Long.MIN_VALUE, max);
+	}
+
+	/**
+	 * @param timestamp The time to start at, in milliseconds since the epoch
+	 * @param max The most records to return
+	 * @return Up to max records starting with the first one logged at or after timestamp
+	 * @throws IOException If a segment could not be read
+	 */
+	public List<ChatLogRecord> readSince(long timestamp, int max) throws IOException {
+		List<File> segments = list();
+		int low = 1;
+		int high = segments.size() - 1;
+		int start = 0;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			if (firstTimestamp(segments, mid) <= timestamp)
+			{
+				start = mid;
+				low = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+		return read(segments, start, Long.MIN_VALUE, timestamp, max);
+	}
+
+	/**
+	 * @return The newest complete record in the log, or null if it is empty
+	 * @throws IOException If a segment could not be read
+	 */
+	public ChatLogRecord last() throws IOException {
+		List<File> segments = list();
+		for (int i = segments.size() - 1; i >= 0; i--)
+		{
+			ByteBuffer segment = map(segments, i, segments.get(i));
+			ByteBuffer index = map(segments, i, indexFile(segments.get(i)));
+			int entries = index.remaining() / SegmentedChatLog.INDEX_ENTRY_SIZE;
+			ChatLogRecord last = null;
+			for (int entry = entries - 1; entry >= 0 && last == null; entry--)
+			{
+				int offset = index.getInt(entry * SegmentedChatLog.INDEX_ENTRY_SIZE + 16);
+				if (offset >= segment.limit())
+					continue;
+				segment.position(offset);
+				ChatLogRecord record;
+				while ((record = next(segment)) != null)
+					last = record;
+			}
+			if (last != null)
+				return last;
+		}
+		return null;
+	}
+
+	private List<ChatLogRecord> read(List<File> segments, int start, long sequence, long timestamp, int max)
+			throws IOException {
+		List<ChatLogRecord> records = new ArrayList<ChatLogRecord>(Math.min(max, 1024));
+		for (int i = start; i < segments.size() && records.size() < max; i++)
+		{
+			ByteBuffer segment = map(segments, i, segments.get(i));
+			segment.position(seek(map(segments, i, indexFile(segments.get(i))), segment.limit(), sequence, timestamp));
+			ChatLogRecord record;
+			while (records.size() < max && (record = next(segment)) != null)
+				if (record.getSequence() >= sequence && record.getTimestamp() >= timestamp)
+					records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * Binary searches an index for the last entry before the wanted record
+	 * @return The offset to start scanning the segment from
+	 */
+	private static int seek(ByteBuffer index, int segmentLength, long sequence, long timestamp) {
+		int low = 0;
+		int high = index.remaining() / SegmentedChatLog.INDEX_ENTRY_SIZE - 1;
+		int offset = 0;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int entry = mid * SegmentedChatLog.INDEX_ENTRY_SIZE;
+			//an entry only counts if it is strictly before the wanted record, so nothing equal to it is skipped
+			if (index.getLong(entry) < sequence || index.getLong(entry + 8) < timestamp)
+			{
+				offset = index.getInt(entry + 16);
+				low = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+		return offset < segmentLength ? offset : 0;
+	}
+
+	/**
+	 * Reads the record at the buffer's position and moves past it
+	 * @return The record, or null at the end of the segment or a partly written record
+	 */
+	private static ChatLogRecord next(ByteBuffer segment) {
+		if (segment.remaining() < SegmentedChatLog.RECORD_HEADER_SIZE)
+			return null;
+		int start = segment.position();
+		int length = segment.getInt();
+		if (length < SegmentedChatLog.RECORD_HEADER_SIZE - 4 || length > segment.remaining())
+		{
+			segment.position(start);
+			return null;
+		}
+		long sequence = segment.getLong();
+		long timestamp = segment.getLong();
+		byte[] text = new byte[length - (SegmentedChatLog.RECORD_HEADER_SIZE - 4)];
+		segment.get(text);
+		return new ChatLogRecord(sequence, timestamp, new String(text, SegmentedChatLog.UTF8));
+	}
+
+	/**
+	 * @return The timestamp of the first record in segment i, or Long.MAX_VALUE if it has none yet, which only the
+	 * newest segment can be
+	 */
+	private long firstTimestamp(List<File> segments, int i) throws IOException {
+		File segment = segments.get(i);
+		Long first = firstTimestamps.get(segment);
+		if (first != null)
+			return first;
+		ByteBuffer index = map(segments, i, indexFile(segment));
+		if (index.remaining() < SegmentedChatLog.INDEX_ENTRY_SIZE)
+			return Long.MAX_VALUE;
+		first = index.getLong(8);
+		firstTimestamps.put(segment, first);
+		return first;
+	}
+
+	/**
+	 * Lists the segments, forgetting everything about ones that have been deleted since the last lookup
+	 * @return The segment files, oldest first
+	 */
+	private List<File> list() {
+		List<File> segments = segments(directory);
+		if (!segments.isEmpty() && firstSequence(segments.get(0)) != oldest)
+		{
+			oldest = firstSequence(segments.get(0));
+			HashSet<File> listed = new HashSet<File>(segments);
+			for (File segment: segments)
+				listed.add(indexFile(segment));
+			closed.keySet().retainAll(listed);
+			open.keySet().retainAll(listed);
+			firstTimestamps.keySet().retainAll(listed);
+		}
+		return segments;
+	}
+
+	/**
+	 * Maps a file belonging to segment i, reusing the mapping if the segment is no longer written to or hasn't
+	 * grown since it was mapped
+	 * @return A buffer of its own, positioned at the start of the file
+	 */
+	private ByteBuffer map(List<File> segments, int i, File file) throws IOException {
+		MappedByteBuffer mapped;
+		if (i < segments.size() - 1)
+		{
+			mapped = closed.get(file);
+			if (mapped == null)
+			{
+				mapped = map(file);
+				closed.put(file, mapped);
+				open.remove(file);
+			}
+		}
+		else
+		{
+			mapped = open.get(file);
+			if (mapped == null || mapped.capacity() != file.length())
+			{
+				mapped = map(file);
+				open.put(file, mapped);
+			}
+		}
+		return mapped.duplicate();
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	static File indexFile(File segment) {
+		String name = segment.getName();
+		name = name.substring(0, name.length() - SegmentedChatLog.SEGMENT_SUFFIX.length());
+		return new File(segment.getParentFile(), name + SegmentedChatLog.INDEX_SUFFIX);
+	}
+
+	/**
+	 * @return The segment files in a log directory, oldest first
+	 */
+	static List<File> segments(File directory) {
+		String[] names = directory.list();
+		if (names == null)
+			return new ArrayList<File>();
+		//names are matched against the listing rather than checked on disk, a lookup lists the directory every time
+		HashSet<String> listed = new HashSet<String>(Arrays.asList(names));
+		List<File> found = new ArrayList<File>(names.length / 2);
+		for (String name: names)
+		{
+			if (!name.endsWith(SegmentedChatLog.SEGMENT_SUFFIX))
+				continue;
+			String base = name.substring(0, name.length() - SegmentedChatLog.SEGMENT_SUFFIX.length());
+			if (listed.contains(base + SegmentedChatLog.INDEX_SUFFIX))
+				found.add(new File(directory, name));
+		}
+		File[] files = found.toArray(new File[found.size()]);
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long first = firstSequence(a);
+				long second = firstSequence(b);
+				return first < second ? -1 : (first == second ? 0 : 1);
+			}
+		});
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+
+	/**
+	 * @return The sequence number of the first record in a segment, taken from its name
+	 */
+	static long firstSequence(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SegmentedChatLog.SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * @return The file name, without suffix, of a segment whose first record is numbered sequence
+	 */
+	static String segmentName(long sequence) {
+		String number = Long.toString(sequence);
+		StringBuilder name = new StringBuilder(20);
+		for (int i = number.length(); i < 20; i++)
+			name.append('0');
+		return name.append(number).toString();
+	}
+
+	/**
+	 * Prints the chat log as text
+	 * @param args The log directory, optionally followed by "-seq N" or "-since MILLIS" to start part way through
+	 */
+	public static void main(String[] args) throws IOException {
+		ChatLogReader reader = new ChatLogReader(new File(args.length > 0 ? args[0] : "ChatLog"));
+		long sequence = 1;
+		long since = Long.MIN_VALUE;
+		if (args.length > 2 && args[1].equals("-seq"))
+			sequence = Long.parseLong(args[2]);
+		else if (args.length > 2 && args[1].equals("-since"))
+			since = Long.parseLong(args[2]);
+
+		List<ChatLogRecord> records = since == Long.MIN_VALUE ? reader.readFrom(sequence, 1024)
+				: reader.readSince(since, 1024);
+		while (!records.isEmpty())
+		{
+			for (ChatLogRecord record: records)
+				System.out.println(record.getText());
+			records = reader.readFrom(records.get(records.size() - 1).getSequence() + 1, 1024);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package chat.server;
+
+/**
+ * One line of the chat log as read back by a ChatLogReader
+ */
+public class ChatLogRecord {
+	private long sequence;
+	private long timestamp;
+	private String text;
+
+	/**
+	 * @param sequence Position of the record in the whole log, starting at 1
+	 * @param timestamp When the record was written, in milliseconds since the epoch
+	 * @param text The logged line without its line break
+	 */
+	public ChatLogRecord(long sequence, long timestamp, String text) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.text = text;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public String toString() {
+		return sequence + " " + timestamp + " " + text;
+	}
+}
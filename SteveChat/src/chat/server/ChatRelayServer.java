@@ -3,158 +3,460 @@
  */
 package chat.server;
 
-import java.awt.event.WindowEvent;
-import java.awt.event.WindowListener;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.InetAddress;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map.Entry;
-
-import javax.swing.JFrame;
-import javax.swing.JOptionPane;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
-
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+
+import chat.Frame;
 import chat.MessageHandler;
 
 /**
- * Server for the Chat relay system, will handle recieving and sending of messages from multiple clients simultaneously
+ * Server for the Chat relay system, will handle recieving and sending of messages from multiple clients simultaneously.
+ * The server runs without a window when headless, printing its operator log to the console; otherwise a debug window
+ * shows the log
  * @author Calvin Nefdt - 207524322	
  */
-public class ChatRelayServer extends JFrame{
+public class ChatRelayServer {
 
-	private static final long serialVersionUID = 2228986130831416873L;
+	//How long to wait before accepting again after an accept failed
+	private static final long ACCEPT_RETRY_MILLIS = 100;
 
-	//The port that the server functions on
-	private static final int SERVER_PORT = 9999;
-	
 	//Second close forces immediate server shutdown
 	boolean force = false;
 
-	//External storage files for chat logs and error logs
-	BufferedWriter errorLog = null;
-	private File outputFile = new File("ChatLog.txt");
-	JTextArea debugArea = new JTextArea();
+	//Every setting the server was started with
+	private ServerConfig config;
+
+	//Directory the chat log is written to
+	File outputFile;
+
+	//Operator messages, logged without waiting and shown by the debug window or printed to the console when headless
+	private OperatorLog operatorLog;
+	private OperatorConsole console = null;
+
+	//One chat log appender shared by every client, writing in batches from its own thread to a directory of
+	//rotating segments
+	private ChatLogAppender chatLog;
+	//Set while chat log lines are being dropped, so the operator log says so once rather than for every line
+	private AtomicBoolean chatLogBehind = new AtomicBoolean(false);
+
+	//Connected users, looked up by connection id or nickname. Nicknames are unique across the whole server, so a
+	//private message or a whois needs no room. Every client handler touches this, so it is concurrent rather than
+	//synchronized
+	SessionRegistry registry = new SessionRegistry();
+
+	//The rooms by name, each with its own members, history and lock, and the lobby every client starts in. Rooms
+	//other than the lobby are created by the first client to join them and removed when the last one parts
+	private ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	Room lobby;
+	//How many recent lines each room keeps, and how many bytes of them
+	private int historyLines;
+	private int historyBytes;
 
-	//HashMaps used to keep track of user names and associated details necessary for functionality
-	private HashMap<InetAddress, String> userList = new HashMap<InetAddress, String>(10); //maps names to IP addresses
-	private HashMap<InetAddress, PrintWriter> outputList = new HashMap<InetAddress,PrintWriter>(10); //maps IP's to server output
-	private ArrayList<PrintWriter> serverOutput = new ArrayList<PrintWriter>();
-	private int counter = 0;
+	//The other servers sharing the rooms, if any
+	Cluster cluster;
+
+	//Lets a client whose connection dropped take its session back, only on the server it was connected to
+	ResumeTokens resumeTokens;
+
+	//Counters, gauges and latencies, shown to operators by "/stats" and over JMX
+	Metrics metrics = new Metrics(this);
+	
+	//Ids handed to client connections, 0 is reserved for the server itself
+	private AtomicInteger connectionIds = new AtomicInteger(0);
+	
+	//Output for each client waits in a queue of its own, so a slow client only holds up itself. The queue length,
+	//what happens when it fills up and how long the BLOCK policy waits, which -nio doesn't allow
+	int outboundCapacity;
+	OutboundQueue.OverflowPolicy overflowPolicy;
+	long overflowTimeout;
+	
+	//Runs client handlers and writers in virtual thread mode, null when each gets a platform thread
+	private ExecutorService handlerExecutor = null;
 	ServerSocket ss;
 
 	/**
-	 * Constructor for the Server that implements all files for storing data and opens the Socket for the server to
-	 * handle clients, as well as a small window for debugging purposes
-	 * @throws IOException If for some reason the chat or error logs could not be handled properly
+	 * Sets the server up with the default settings, see ChatRelayServer(ServerConfig). Call serve() to start
+	 * accepting clients
 	 */
 	public ChatRelayServer(){
-		super("Server debug");
-		boolean listening = true;
-		add(new JScrollPane(debugArea));
-		debugArea.setEditable(false);
-		setSize(300, 300);
-		setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
-		setVisible(true);
-
-		//Add specific functionality to the server Window for shuting down
-		this.addWindowListener(new WindowListener(){
-			@Override
-			public void windowActivated(WindowEvent arg0){}
+		this(false, false);
+	}
 
-			//Override the close event
-			@Override
-			public void windowClosed(WindowEvent arg0) {
-				try {
-					int result = JOptionPane.showConfirmDialog(null, "Immediate shutdown? (Saying no will shut the server down in 30s");
-					
-					if (result == JOptionPane.CANCEL_OPTION)
-						return;
-					debug("Server received shutdown request, stopping all functionality");
-					if (result == JOptionPane.YES_OPTION)  
-						shutdown(0, true);
-					else if (result == JOptionPane.NO_OPTION)
-						shutdown(30, false);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+	/**
+	 * Sets the server up with the default settings apart from how clients are served, see
+	 * ChatRelayServer(ServerConfig). Call serve() to start accepting clients
+	 * @param nonBlocking True to serve every client from a small pool of selector event loops instead of a thread each
+	 * @param virtualThreads True to run each client's handler on a virtual thread instead of a platform thread
+	 */
+	public ChatRelayServer(boolean nonBlocking, boolean virtualThreads){
+		this(new ServerConfig().set("nio", Boolean.toString(nonBlocking)).set("virtual", Boolean.toString(virtualThreads)));
+	}
 
-			@Override
-			public void windowClosing(WindowEvent arg0) {
-				try {
-					int result = JOptionPane.showConfirmDialog(null, "Immediate shutdown? (Saying no will shut the server down in 30s");
-					
-					if (result == JOptionPane.CANCEL_OPTION)
-						return;
-					debug("Server received shutdown request, stopping all functionality");
-					if (result == JOptionPane.YES_OPTION)  
-						shutdown(0, true);
-					else if (result == JOptionPane.NO_OPTION)
-						shutdown(30, false);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+	/**
+	 * Sets the server up without accepting any clients yet: opens the chat log and starts the debug window, or the
+	 * console printer when headless. Call serve() to start accepting clients
+	 * @param config The settings to run with
+	 * @throws IllegalArgumentException If a setting has an invalid value
+	 */
+	public ChatRelayServer(ServerConfig config){
+		this.config = config;
+		outputFile = new File(config.get("logDirectory"));
+		chatLog = new ChatLogAppender(outputFile, config.getLong("logSegmentBytes"), config.getInt("logIndexInterval"),
+				config.getLong("logRetainBytes"), config.getInt("logFlushRecords"), config.getLong("logFlushMillis"), config.getLong("logSyncMillis"));
+		historyLines = config.getInt("historyLines");
+		historyBytes = config.getInt("historyBytes");
+		cluster = new Cluster(this, config);
+		lobby = new Room(Room.LOBBY, historyLines, historyBytes, cluster);
+		rooms.put(Room.LOBBY, lobby);
+		resumeTokens = new ResumeTokens(config.getLong("resumeGraceMillis"));
+		outboundCapacity = config.getInt("outboundCapacity");
+		overflowPolicy = config.getOverflowPolicy();
+		if (overflowPolicy == OutboundQueue.OverflowPolicy.BLOCK && config.getBoolean("nio"))
+			throw new IllegalArgumentException("overflowPolicy BLOCK can't be used with -nio, as waiting for one client "
+					+ "would hold up every client on its event loop");
+		overflowTimeout = config.getLong("overflowTimeout");
+
+		final int operatorLogLines = config.getInt("operatorLogLines");
+		operatorLog = new OperatorLog(operatorLogLines);
+		chatLog.start();
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+					new ObjectName("chat.server:type=Relay,port=" + config.getInt("port")));
+		} catch (JMException e) {
+			debug("Server statistics are not available over JMX: " + e.getMessage());
+		}
 
-			@Override
-			public void windowDeactivated(WindowEvent arg0){}
+		if (config.getBoolean("headless"))
+		{
+			console = new OperatorConsole(operatorLog, System.out);
+			console.start();
+		}
+		else
+		{
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					new ServerWindow(ChatRelayServer.this, operatorLog, operatorLogLines);
+				}
+			});
+		}
 
+		//a headless server is usually stopped with a signal, which must not lose the end of the chat log
+		Runtime.getRuntime().addShutdownHook(new Thread("ShutdownHook") {
 			@Override
-			public void windowDeiconified(WindowEvent arg0) {}
+			public void run() {
+				chatLog.close();
+				if (console != null)
+					console.printPending();
+			}
+		});
+	}
 
-			@Override
-			public void windowIconified(WindowEvent arg0) {}
+	/**
+	 * Opens the server socket on the configured address and port and serves clients until the server is shut down
+	 */
+	public void serve(){
+		int port = config.getInt("port");
+		String bind = config.get("bind").trim();
+		InetSocketAddress address = bind.length() == 0 ? new InetSocketAddress(port) : new InetSocketAddress(bind, port);
+		boolean listening = true;
 
-			@Override
-			public void windowOpened(WindowEvent arg0) {}
-		});
+		try{
+			cluster.start();
+		}
+		catch(IOException e){
+			debug("Error starting the cluster link. Ensure that the cluster port(" + config.getInt("clusterPort") + ") is not in use");
+			return;
+		}
 
 		try{
+			if (config.getBoolean("nio"))
+			{
+				//Selector based server, one event loop per core owns every read, write and command
+				ServerSocketChannel acceptor = ServerSocketChannel.open();
+				ss = acceptor.socket();
+				ss.bind(address);
+				
+				int loops = Runtime.getRuntime().availableProcessors();
+				debug("Server started (" + ss.getLocalSocketAddress() + ") with " + loops + " event loops");
+				debug("^ 0.0.0.0 = listening on every available interface");
+				new SelectorServer(this, acceptor, loops).run();
+				return;
+			}
+			
+			//Handlers either get a thread of their own or are run by the executor
+			handlerExecutor = config.getBoolean("virtual") ? createVirtualThreadExecutor() : null;
+			
 			//Create serversocket for listening to clients and listen until terminated
-			ss = new ServerSocket(SERVER_PORT);
+			ss = new ServerSocket();
+			ss.bind(address);
 			
-			debug("Server started (" + ss.getInetAddress() + ")");
+			debug("Server started (" + ss.getLocalSocketAddress() + ")");
 			debug("^ 0.0.0.0 = listening on every available interface");
 			while(listening){
-				new ChatRelayServerThread(ss.accept()).start();
+				Socket socket;
+				try{
+					socket = ss.accept();
+				}
+				catch(IOException e){
+					//out of file descriptors or the like, keep serving the clients already connected
+					if (ss.isClosed())
+						break;
+					debug("Error accepting a client: " + e.getMessage());
+					pauseAfterFailedAccept();
+					continue;
+				}
+				ChatRelayServerThread handler = new ChatRelayServerThread(socket);
+				if (handlerExecutor != null)
+					handlerExecutor.execute(handler);
+				else
+					handler.start();
 			}
 			ss.close();
 		}
 		catch(IOException e){
-			debug("Error starting server. Ensure that the server directory has write priveleges and that the port("+ SERVER_PORT +") is not in use");
+			debug("Error starting server. Ensure that the server directory has write priveleges and that the port("+ port +") is not in use");
 		}
 		
 	}
 
 	/**
-	 * Used for debugging purposes, outputs the passes string as a message on the server window
+	 * Waits a moment after a failed accept, giving clients time to hang up and free descriptors rather than failing
+	 * the same accept over and over. Kept here, as loading a class of its own takes a descriptor too
+	 */
+	static void pauseAfterFailedAccept() {
+		try {
+			Thread.sleep(ACCEPT_RETRY_MILLIS);
+		} catch (InterruptedException e) {
+			//try again sooner
+		}
+	}
+
+	/**
+	 * Creates the executor used in virtual thread mode. Virtual threads only exist from Java 21, so the factory is
+	 * looked up when the server starts and a pool of platform threads is used on older runtimes
+	 * @return An executor that starts a new thread for every handler
+	 */
+	private ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			debug("Running client handlers on virtual threads");
+			return (ExecutorService)factory.invoke(null);
+		} catch (Exception e) {
+			debug("Virtual threads are not supported by this Java version, running client handlers on pooled threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Runs a task for a client on a thread of its own, or on the executor in virtual thread mode
+	 * @param task The task to run
+	 */
+	private void startClientTask(Runnable task) {
+		if (handlerExecutor != null)
+			handlerExecutor.execute(task);
+		else
+			new Thread(task).start();
+	}
+
+	/**
+	 * Used for debugging purposes, adds the passed string to the operator log shown on the server window or console.
+	 * Never waits, so it is safe to call from any client thread or event loop
 	 * @param m The message to output
 	 */
 	void debug(String m)
 	{
-		debugArea.setText(debugArea.getText() + m + "\n");
+		operatorLog.log(m);
 	}
 	
 	/**
-	 * Broadcast message to all clients connected to this server
-	 * @param m The message to be broadcast
+	 * Sends a line to every client connected to this server, whatever rooms it is in. Encoded for each client, so
+	 * only for the rare announcements that concern everybody, such as a shutdown
+	 * @param m The line to send
+	 */
+	void announce(String m)
+	{
+		for (ClientSession session: registry.sessions())
+			session.send(m);
+	}
+
+	/**
+	 * Puts a client in a room, creating the room if nobody is in it. The client is sent the room's recent history
+	 * and user list before its first broadcast, see Room.add
+	 * @param session The client joining
+	 * @param name The room's name, as returned by Room.normalise
+	 * @return The room
+	 */
+	Room joinRoom(ClientSession session, String name)
+	{
+		while (true)
+		{
+			Room room = rooms.get(name);
+			if (room == null)
+			{
+				Room created = new Room(name, historyLines, historyBytes, cluster);
+				room = rooms.putIfAbsent(name, created);
+				if (room == null)
+					room = created;
+			}
+			if (room.add(session))
+				return room;
+			//closed as its last member parted, make way for a new one
+			rooms.remove(name, room);
+		}
+	}
+
+	/**
+	 * Takes a client out of a room, removing the room if nobody is left in it
+	 * @param session The client leaving
+	 * @param room The room
+	 */
+	void partRoom(ClientSession session, Room room)
+	{
+		if (room.remove(session))
+			rooms.remove(room.getName(), room);
+	}
+
+	/**
+	 * Puts a user of another node in a room, creating the room if nobody here is in it
+	 * @param node The node the user is connected to
+	 * @param name The room's name, as returned by Room.normalise
+	 * @param nick The user's name
+	 */
+	void joinRemote(String node, String name, String nick)
+	{
+		while (true)
+		{
+			Room room = rooms.get(name);
+			if (room == null)
+			{
+				Room created = new Room(name, historyLines, historyBytes, cluster);
+				room = rooms.putIfAbsent(name, created);
+				if (room == null)
+					room = created;
+			}
+			if (room.addRemote(node, nick))
+				return;
+			rooms.remove(name, room);
+		}
+	}
+
+	/**
+	 * Takes a user of another node out of a room, removing the room if nobody is left in it
+	 * @param node The node the user is connected to
+	 * @param name The room's name
+	 * @param nick The user's name
+	 */
+	void partRemote(String node, String name, String nick)
+	{
+		Room room = rooms.get(name);
+		if (room != null && room.removeRemote(node, nick))
+			rooms.remove(name, room);
+	}
+
+	/**
+	 * @param name A room's name, as returned by Room.normalise
+	 * @return The room, or null if nobody is in it
+	 */
+	Room findRoom(String name)
+	{
+		return rooms.get(name);
+	}
+
+	/**
+	 * @return Every room and how many are in it, as "#lobby (12), #java (3)", most members first
+	 */
+	String roomListing()
+	{
+		List<Room> all = new ArrayList<Room>(rooms.values());
+		Collections.sort(all, new Comparator<Room>() {
+			public int compare(Room a, Room b) {
+				return a.size() != b.size() ? b.size() - a.size() : a.getName().compareTo(b.getName());
+			}
+		});
+		StringBuilder listing = new StringBuilder();
+		for (Room room: all)
+		{
+			if (listing.length() > 0)
+				listing.append(", ");
+			listing.append(room.getName()).append(" (").append(room.size()).append(')');
+		}
+		return listing.toString();
+	}
+
+	/**
+	 * @return The number of rooms with a member on this server or another node
+	 */
+	int roomCount()
+	{
+		return rooms.size();
+	}
+
+	/**
+	 * @param password What a client sent with "/oper"
+	 * @return True if it is the operator password, never when no password is set
+	 */
+	boolean isOperatorPassword(String password)
+	{
+		Charset utf8 = Charset.forName("UTF-8");
+		byte[] expected = config.get("operatorPassword").getBytes(utf8);
+		return expected.length > 0 && MessageDigest.isEqual(expected, password.getBytes(utf8));
+	}
+
+	/**
+	 * @return A new id for a client connection
+	 */
+	int nextConnectionId()
+	{
+		return connectionIds.incrementAndGet();
+	}
+
+	/**
+	 * Queues a line for the chat log, or counts it as dropped if the log has fallen too far behind. The operator
+	 * log is told when lines start being dropped and when the chat log catches up again
+	 * @param m The text to log, including its line break
 	 */
-	void broadcastMessage(String m)
+	void logChat(String m)
 	{
-		for(int i=0; i<serverOutput.size(); i++){
-			serverOutput.get(i).println(m);
-			serverOutput.get(i).flush();
+		if (chatLog.append(m))
+		{
+			if (chatLogBehind.get() && chatLogBehind.compareAndSet(true, false))
+				debug("The chat log has caught up, " + metrics.getChatLogDropped() + " lines dropped so far");
+		}
+		else
+		{
+			metrics.chatLogDropped.increment();
+			if (chatLogBehind.compareAndSet(false, true))
+				debug("The chat log can't keep up with the disk, dropping lines until it catches up");
 		}
 	}
 
@@ -163,11 +465,11 @@ public class ChatRelayServer extends JFrame{
 	 * @param sec The amount of time before a shutdown occurs
 	 * @throws IOException If the server socket can not be found to close 
 	 */
-	private void shutdown(int sec, boolean force) throws IOException {
+	void shutdown(int sec, boolean force) throws IOException {
 		if (!force)
 		{
 			force = true; //Next shutdown attempt will force the server to close immediately
-			broadcastMessage("Server has received a shutdown request and will shut down in 30 seconds.");
+			announce("Server has received a shutdown request and will shut down in 30 seconds.");
 			int seconds = sec+1;
 			while (seconds > 1)
 			{
@@ -175,356 +477,225 @@ public class ChatRelayServer extends JFrame{
 				try {
 					Thread.sleep(1000);
 					if (seconds % 5 == 0)
-						broadcastMessage(seconds + "s until server shutdown");
+						announce(seconds + "s until server shutdown");
 				} catch (InterruptedException e) {
-					broadcastMessage("Server closed.");
-					broadcastMessage("/disconnect");
+					announce("Server closed.");
+					announce("/disconnect");
 					System.exit(0);
 				}
 			}
 		}
-		broadcastMessage("Server closed.");
-		broadcastMessage("/disconnect");
+		announce("Server closed.");
+		announce("/disconnect");
 		if (ss != null)
 			ss.close();
+		chatLog.close();
 		System.exit(0);
 	}
 
 	/**
 	 * Main Method for running the server
+	 * @param args Settings as "-NAME VALUE", e.g. "-port 9000 -bind 127.0.0.1", see ServerConfig. Pass "-nio" to run
+	 * the non-blocking selector server instead of a thread per client, "-virtual" to keep a handler per client but run
+	 * each one on a virtual thread, or "-headless" to run without the debug window
 	 */
 	public static void main(String[] args) {
-		new ChatRelayServer();
+		try {
+			new ChatRelayServer(ServerConfig.fromArgs(args)).serve();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(new ServerConfig().usage());
+			System.exit(1);
+		}
 	}
 
 	//==============================================================================================================================================
 	/**
-	 * Class used to handle multiple threads of incoming users
+	 * Class used to handle multiple threads of incoming users. In virtual thread mode it is only used as the
+	 * Runnable handed to the executor and is never started itself
 	 * @author Calvin Nefdt - 207524322
 	 */
 	public class ChatRelayServerThread extends Thread {
 		private Socket clientConnection = null;
-		private ObjectInputStream clientInput = null;
-		private BufferedWriter chatWriter = null;
-		private PrintWriter clientSpecificOutput = null;
-		String clientName;
+		private MessageInputStream clientInput = null;
+		private DataInputStream frameInput = null;
+		private OutboundQueue outbound = null;
+		//Read by the writer and by threads that overflow the queue as well as the reader
+		private volatile ClientSession session = null;
 
 		/**
-		 * Constructor implements all connections and input or output streams
 		 * @param socket The socket that the client has connected through
 		 */
 		public ChatRelayServerThread(Socket socket){
-			try{
-				clientConnection = socket;
-				clientInput = new ObjectInputStream(clientConnection.getInputStream());
-				chatWriter = new BufferedWriter(new FileWriter(outputFile, true));
-				clientSpecificOutput = new PrintWriter(clientConnection.getOutputStream(), true);
-				serverOutput.add(clientSpecificOutput);
-			}
-			catch(IOException e){
-				e.printStackTrace();
-			}
+			clientConnection = socket;
 		}
 
 		/**
-		 * Runs each thread for each socket that connects to the server and monitors for incoming messages
-		 * kills the connection when the client disconnects
+		 * Opens the input and output streams. Done by the handler rather than the constructor, as reading the
+		 * first bytes blocks and must not hold up the accept loop. A client that opens with the binary protocol's
+		 * hello is answered and gets frames, anything else is treated as an old client's object stream
+		 * @return True if the streams were opened
 		 */
-		public void run(){
-			MessageHandler message;
-			try {
-				while((message = (MessageHandler)clientInput.readObject()) != null){
-					message.setTimestamp((new SimpleDateFormat ("HH:mm")).format(new Date()));
-					message.setUserLabel(userList.get(clientConnection.getInetAddress()));
-					if(message.isCommand()){
-						try {
-							handleCommand(message.getMessage());
-						} catch (UnknownCommandException e) {
-							clientSpecificOutput.println(e.getMessage());
-						}
-						catch (ArrayIndexOutOfBoundsException e) {
-							try
-							{
-							clientSpecificOutput.println("Missing paramater for command " + message.getMessage().substring(1, message.getMessage().indexOf(" ")));
-							}
-							catch (StringIndexOutOfBoundsException e2)
-							{
-								clientSpecificOutput.println("Missing paramater for command " + message.getMessage().substring(1, message.getMessage().length()));
-							}
-						}
+		private boolean openStreams(){
+			try{
+				//the buffered stream only ever reads in blocks, each counted once the session exists
+				BufferedInputStream in = new BufferedInputStream(new FilterInputStream(clientConnection.getInputStream()){
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int count = super.read(b, off, len);
+						ClientSession reader = session;
+						if (count > 0 && reader != null)
+							reader.bytesRead(count);
+						return count;
 					}
-					else{
-						String tempMes = message.toString();
-						broadcastMessage(tempMes);
-						chatWriter.write(message.toString());
-						chatWriter.flush();
+				});
+				final OutputStream out = new BufferedOutputStream(clientConnection.getOutputStream(), 64 * 1024);
+				outbound = new OutboundQueue(outboundCapacity, overflowPolicy, overflowTimeout){
+					@Override
+					protected void overflowed() {
+						//the reader fails once the socket is closed and cleans up the session
+						debug("Dropping client " + clientConnection.getInetAddress() + ", it is not reading its messages");
+						ClientSession slow = session;
+						if (slow != null)
+							slow.markSlow();
+						closeConnection();
 					}
+				};
+				PrintWriter clientSpecificOutput;
+				boolean binaryProtocol = false;
+				int connectionId = nextConnectionId();
+
+				byte[] hello = new byte[Frame.CLIENT_HELLO_SIZE];
+				in.mark(hello.length);
+				int helloLength = 0;
+				int count;
+				while (helloLength < Frame.MAGIC.length && (count = in.read(hello, helloLength, Frame.MAGIC.length - helloLength)) > 0)
+					helloLength += count;
+				if (helloLength == Frame.MAGIC.length && Frame.isHello(hello, 0))
+				{
+					frameInput = new DataInputStream(in);
+					byte version = frameInput.readByte();
+					out.write(Frame.serverHello(version, connectionId));
+					out.flush();
+					clientSpecificOutput = new PrintWriter(new FrameWriter(outbound), true);
+					binaryProtocol = true;
+				}
+				else
+				{
+					in.reset();
+					clientInput = new MessageInputStream(in);
+					clientSpecificOutput = new PrintWriter(new OutputStreamWriter(outbound), true);
 				}
-				killConnection();
-
-			} catch (IOException e) {
-				//client disconnected
-				String temp = clientName + " has disconnected from the server";
-				debug(clientName + " disconnected");
-				userList.remove(clientName);
-				serverOutput.remove(clientSpecificOutput);
-				broadcastMessage(temp);
 
-			} catch (ClassNotFoundException e) {
+				startClientTask(new Runnable(){
+					public void run() {
+						writeOutput(out);
+					}
+				});
+
+				session = new ClientSession(ChatRelayServer.this, connectionId, clientConnection.getInetAddress(), clientSpecificOutput,
+						outbound, binaryProtocol){
+					@Override
+					protected void closeTransport() {
+						//the writer closes the socket once everything queued has been sent
+						outbound.finish();
+					}
+				};
+				return true;
+			}
+			catch(IOException e){
+				//the client hung up or sent garbage before the session started, nothing else will close the socket
 				e.printStackTrace();
+				closeConnection();
+				return false;
 			}
 		}
 
 		/**
-		 * Will carry out commands passed through to the server from the Client
-		 * @throws IOException 
+		 * Drains the outbound queue to the socket, writing everything that queued up while the last write was
+		 * in progress in one go. A plain socket has no channel to gather from, so the buffered stream collects the
+		 * queued buffers into as few writes as it can. Closes the connection once the queue is finished or the
+		 * client stops reading
+		 * @param out The client's output stream
 		 */
-		private void handleCommand(String command) throws IOException, UnknownCommandException, ArrayIndexOutOfBoundsException {
-			//For user connected
-			
-			//if (command.equals("/updatelist") || command.equals("/join"))
-				//throw new UnrecognisedCommandException
-			
-			if (command.startsWith("/connect"))
-			{
-				clientName = command.split(" ")[1];
-				
-				//clientName has to be unique
-				boolean nameExists = false;
-				
-				for (String name: userList.values())
-				{
-					if (clientName.equals(name))
-						nameExists = true;
-				}
-				
-				if (nameExists)
-				{
-					clientName = clientName.concat("_clone");
-					clientSpecificOutput.println("Your username is already in use and has been changed to " + clientName);
-					clientSpecificOutput.println("/nick " + clientName);
-				}
-				
-				//Add user to current user list and notify all clients as necessary and store info in the chatlog
-				userList.put(clientConnection.getInetAddress(), clientName);
-				outputList.put(clientConnection.getInetAddress(), clientSpecificOutput);
-				String temp = clientName + " has connected to the server from " + clientConnection.getInetAddress().toString();
-				debug(clientName + " connected");
-				//send join command back to client
-				clientSpecificOutput.println("/join " + clientName);
-				broadcastMessage(temp);
-				
-				chatWriter.write(temp+"\n");
-				chatWriter.flush();
-
-				sendUserList();
-
-			}
-
-			//User disconnected
-			else if (command.equals("/disconnect"))
-				killConnection();
-
-			//User wants to change nickname
-			else if (command.startsWith("/nick"))
-			{
-				String newName = command.split(" ")[1];
-				
-				for (String name: userList.values())
+		private void writeOutput(OutputStream out) {
+			try {
+				SharedBuffer data;
+				while ((data = outbound.take()) != null)
 				{
-					if (newName.equals(name))
-						throw new UnknownCommandException("Username already in use!");
-				}
-				
-				InetAddress tempAddress = clientConnection.getInetAddress();
-				userList.remove(clientName);
-				userList.put(tempAddress, newName);
-
-				debug(clientName + " changed name to " + newName);
-
-				String temp = clientName + " is now known as " + newName;
-				clientName = newName;
-				clientSpecificOutput.println("/nick " + newName);
-
-				broadcastMessage(temp);
-
-				sendUserList();
-
-				chatWriter.write(temp.toString() + "\n");
-				chatWriter.flush();
-			}
-			
-			//User query of another user
-			else if (command.startsWith("/whois"))
-			{
-				String queryName = command.split(" ")[1];
-								
-				if(userList.containsValue(queryName)){					
-					
-					InetAddress targetAddress = null;
-					
-					for (Entry<InetAddress, String> entry : userList.entrySet()) {
-				        if (queryName.equals(entry.getValue())) {
-				            targetAddress = entry.getKey();
-				        }
-				    }					
-					
-					clientSpecificOutput.println(queryName + ":  " + targetAddress.toString());				
-				}
-				
-				else
-					clientSpecificOutput.println("The user is not present in the channel");
-				
-				chatWriter.flush();
-			}
-			
-			//displays a list of commands and what they do
-			else if(command.equals("/cmdlist")){
-				clientSpecificOutput.println(    " /disconnect - disconnect from server\n"
-												+" /whois <NICK> - obtain client IP for <NICK>\n"
-												+" /msg <NICK> <MESSAGE>- send private messages to <NICK>\n"
-												+" /nick <NAME> - change nick to <NAME>\n"
-												+" /me <EMOTE> - emote a message that will start with your name\n"
-												+" /slap <NAME> - perform the slap emote\n"
-												+" /help - opens readme.txt");
-				
-				chatWriter.flush();				
-			}
-			
-			//Open the readme.txt
-			else if(command.startsWith("/help")){
-				try {
-					Runtime.getRuntime().exec("cmd /c start Notepad.exe readme.txt");
-				} catch (IOException e) {
-					JOptionPane.showMessageDialog(null, "Unable to open notepad");
-				}
-			}
-			
-			//Performs slap emote
-			else if(command.startsWith("/slap")){
-				String[] split = command.split(" ");
-				String targetUsername = split[1];
-				String message = "";
-				
-				if(userList.containsValue(targetUsername)==true){				
-					 message = "#  " + clientName + " slaps " + targetUsername + " around a bit with a large trout";
-				
-					 for(int i=0; i<serverOutput.size(); i++){
-						serverOutput.get(i).println(message);
-						serverOutput.get(i).flush();
-					}
-				}
-				
-				else{
-					clientSpecificOutput.println("That user does not exist");
+					do
+					{
+						try {
+							out.write(data.array(), 0, data.length());
+							ClientSession writer = session;
+							if (writer != null)
+								writer.wrote(data);
+						} finally {
+							data.release();
+						}
+					} while ((data = outbound.poll()) != null);
+					out.flush();
 				}
-				
-				chatWriter.flush();
+			} catch (InterruptedException e) {
+				//server is shutting down
+			} catch (IOException e) {
+				//client went away, the reader cleans up the session
+				outbound.abort();
 			}
-			
-			//Send a private message to a user
-			else if (command.startsWith("/msg"))
-			{
-				String[] split = command.split(" ");
-				String targetUsername = split[1];
-				
-				if (targetUsername.equals(clientName))
-				{
-					clientSpecificOutput.println("Cannot whisper to yourself!");
-					return;
-				}
-				
-				if (split.length < 3)
-					throw new ArrayIndexOutOfBoundsException(); //no message
-				
-				StringBuilder message = new StringBuilder();
-				for (int i = 2; i < split.length; i++)
-					message.append(split[i] + " ");
-				
-				InetAddress targetAddress = null;
-				
-				for (Entry<InetAddress, String> entry : userList.entrySet()) {
-			        if (targetUsername.equals(entry.getValue())) {
-			            targetAddress = entry.getKey();
-			        }
-			    }
-				
-				if (targetAddress == null)
-					throw new UnknownCommandException("User " + targetUsername + " not connected to server.");
-				
-				clientSpecificOutput.println("You whisper to " + targetUsername + ": " + message.toString());
-				
-				outputList.get(targetAddress).println(clientName + " whispers : " + message.toString());
+			closeConnection();
+		}
 
-				String temp = clientName + "->" + targetUsername + " : " + message.toString();
-				chatWriter.write(temp.toString() + "\n");
-				chatWriter.flush();
-				
-				debug(temp);
-			}
-			
-			//Show details about the user who used the command
-			else if (command.startsWith("/me")){				
-				String[] split = command.split(" ");
-				if (split.length < 2)
-					throw new ArrayIndexOutOfBoundsException(); //no argument
-				StringBuilder message = new StringBuilder();
-				
-				message.append("#  "+clientName+" ");
-				
-				for (int i = 1; i < split.length; i++)
-					message.append(split[i] + " ");
-				
-				for(int i=0; i<serverOutput.size(); i++){
-					serverOutput.get(i).println(message);
-					serverOutput.get(i).flush();
-				}			
+		private void closeConnection() {
+			try {
+				clientConnection.close();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
-			
-			//For anything else the command will be unrecognised
-			else
-				throw new UnknownCommandException("Unrecognised command \"" + command.substring(1, command.length()) + "\"");
 		}
 
 		/**
-		 * Method to send the list of currently connected users
+		 * @return The next message from the client, or null at the end of the stream
+		 * @throws IOException If the connection failed or the client sent something other than a chat message
 		 */
-		private void sendUserList() {
-			String list = "";
-
-			ArrayList<String> list_ = new ArrayList<String>(userList.values());
+		private MessageHandler readMessage() throws IOException {
+			if (frameInput == null)
+				return clientInput.readMessage();
 
-			list = list.concat(list_.get(0));
-			for (int i = 1; i < userList.size(); i++)
+			Frame frame;
+			while ((frame = Frame.read(frameInput)) != null)
 			{
-				list = list.concat("," + list_.get(i));
+				//only typed messages come from clients, anything else is ignored
+				if (frame.getType() == Frame.TYPE_MESSAGE && frame.getPayload().length() > 0)
+					return frame.toMessageHandler();
 			}
-
-			broadcastMessage("/updatelist " + list);
-			
+			return null;
 		}
 
 		/**
-		 * Method to close all input and output streams as well as the socket
+		 * Runs each thread for each socket that connects to the server and monitors for incoming messages
+		 * kills the connection when the client disconnects. However the loop ends, even by a command failing, the
+		 * session is cleaned up and the socket closed
 		 */
-		private void killConnection() throws IOException{
-			String temp = userList.get(clientConnection.getInetAddress())+" has disconnected from the server";
-			userList.remove(clientConnection.getInetAddress());
-			counter--;
-			serverOutput.remove(clientSpecificOutput);
-			outputList.remove(clientConnection.getInetAddress());
-			broadcastMessage(temp);
-			chatWriter.write(temp+"\n");
-			chatWriter.flush();
-			
-			debug(clientName + " disconnected");
-
-			clientSpecificOutput.println("/disconnect");
-
-			clientConnection.close();
-			clientInput.close();
-			chatWriter.close();
-			clientSpecificOutput.close();
+		public void run(){
+			if (!openStreams())
+				return;
+			//what the client's own commands send may wait for room under the BLOCK policy
+			outbound.setOwner(Thread.currentThread());
+			MessageHandler message;
+			try {
+				while((message = readMessage()) != null){
+					session.handleMessage(message);
+				}
+			} catch (ObjectStreamException e) {
+				debug("Dropping client " + clientConnection.getInetAddress() + ", it sent something other than a chat message: "
+						+ e.getMessage());
+			} catch (IOException e) {
+				//client disconnected
+			} finally {
+				//does nothing if "/disconnect" has already ended the session
+				session.connectionLost();
+				closeConnection();
+			}
 		}
 	}
 
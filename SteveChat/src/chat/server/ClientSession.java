@@ -0,0 +1,787 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.MessageHandler;
+
+/**
+ * The server side state of a single connected client and the handling of everything it sends.
+ * A session knows nothing about how bytes reach the client, so the same command handling is used by the
+ * thread-per-client ChatRelayServerThread and by the non-blocking EventLoop.
+ */
+public abstract class ClientSession {
+	private ChatRelayServer server;
+	private int connectionId;
+	private InetAddress clientAddress;
+	private PrintWriter clientSpecificOutput = null;
+	private OutboundQueue outbound;
+	private boolean binaryProtocol;
+	private boolean joined = false;
+	String clientName;
+
+	//What has become of the session. Changed with compareAndSet, so of a drop, a takeover by a resuming connection,
+	//an expiry and a disconnect only one ever acts on the session
+	private static final int LIVE = 0;
+	private static final int HELD = 1;
+	private static final int TAKEN = 2;
+	private static final int CLOSED = 3;
+	private AtomicInteger state = new AtomicInteger(LIVE);
+
+	//Held while a message is handled, the client leaves its rooms or another node forces a rename, so none of them
+	//lands halfway through another. A lock rather than the session's monitor, so a thread blocked on it, or on the
+	//room and cluster work done while holding it, never pins a virtual thread's carrier
+	private ReentrantLock lock = new ReentrantLock();
+
+	//The token a new connection presents to take this session over, null until the client joins
+	private String resumeToken = null;
+
+	//The rooms the client is in, and the one what it says goes to, null if it has parted them all
+	private List<Room> rooms = new CopyOnWriteArrayList<Room>();
+	private volatile Room room = null;
+
+	//Traffic on this connection. Each count only changes on the thread that reads the connection, or the one that
+	//writes it, so volatile is enough for anybody else to read them
+	private volatile long messagesIn = 0;
+	private volatile long bytesIn = 0;
+	private volatile long messagesOut = 0;
+	private volatile long bytesOut = 0;
+	private long connectedAt = System.currentTimeMillis();
+
+	//Set when the client is dropped for not reading its output, so the drop is counted as such
+	private volatile boolean slow = false;
+
+	//Set by "/oper" with the right password, lets the client see the server's statistics
+	private boolean operator = false;
+
+	/**
+	 * Sets up a session. The client is only sent broadcasts once it has joined with "/connect"
+	 * @param server The server this client is connected to
+	 * @param connectionId The id the server gave the connection
+	 * @param address The address the client connected from
+	 * @param output The stream that reaches this client
+	 * @param outbound The queue output goes through, which broadcasts are queued on directly
+	 * @param binaryProtocol True if the client speaks the binary protocol
+	 */
+	ClientSession(ChatRelayServer server, int connectionId, InetAddress address, PrintWriter output,
+			OutboundQueue outbound, boolean binaryProtocol){
+		this.server = server;
+		this.connectionId = connectionId;
+		clientAddress = address;
+		clientSpecificOutput = output;
+		this.outbound = outbound;
+		this.binaryProtocol = binaryProtocol;
+		server.metrics.connections.incrementAndGet();
+	}
+
+	/**
+	 * Closes whatever carries bytes to and from the client. Called once the "/disconnect" directive has been sent
+	 * @throws IOException If the underlying connection could not be closed
+	 */
+	protected abstract void closeTransport() throws IOException;
+
+	/**
+	 * @return The id the server gave this connection
+	 */
+	public int getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * @return The address the client connected from
+	 */
+	public InetAddress getAddress() {
+		return clientAddress;
+	}
+
+	/**
+	 * Sends a line to this client only
+	 * @param m The line to send
+	 */
+	void send(String m) {
+		clientSpecificOutput.println(m);
+	}
+
+	/**
+	 * Queues a broadcast in whichever wire format this client speaks. Skipped while the session is held for its
+	 * client to resume, or once it has ended
+	 * @param broadcast The line being sent to every member of a room
+	 */
+	void deliver(Broadcast broadcast) {
+		if (state.get() == LIVE)
+			outbound.send(broadcast.encoded(binaryProtocol));
+	}
+
+	/**
+	 * @return True if the client speaks the binary protocol, false for an old client
+	 */
+	boolean speaksBinary() {
+		return binaryProtocol;
+	}
+
+	/**
+	 * @return The rooms the client is in
+	 */
+	List<Room> rooms() {
+		return rooms;
+	}
+
+	/**
+	 * Counts bytes read from the client's connection. Only called by the thread reading it
+	 * @param count How many were read
+	 */
+	void bytesRead(int count) {
+		bytesIn += count;
+		server.metrics.bytesIn.add(count);
+	}
+
+	/**
+	 * Counts a buffer written to the client's connection. Only called by the thread writing it
+	 * @param buffer The buffer, before it is released
+	 */
+	void wrote(SharedBuffer buffer) {
+		messagesOut++;
+		bytesOut += buffer.length();
+		server.metrics.wrote(buffer);
+	}
+
+	/**
+	 * Marks the client as dropped for not reading its output
+	 */
+	void markSlow() {
+		slow = true;
+	}
+
+	/**
+	 * @return The number of buffers waiting to be written to the client
+	 */
+	int queued() {
+		return outbound.size();
+	}
+
+	/**
+	 * @return The connection's traffic, as "NAME (connection ID from ADDRESS, 12s): ..."
+	 */
+	String stats() {
+		return clientName + " (connection " + connectionId + " from " + clientAddress + ", "
+				+ (System.currentTimeMillis() - connectedAt) / 1000 + "s): in " + messagesIn + " messages, " + bytesIn
+				+ " bytes; out " + messagesOut + " messages, " + bytesOut + " bytes; " + queued() + " queued";
+	}
+
+	/**
+	 * @return The writer for lines sent to this client only
+	 */
+	PrintWriter output() {
+		return clientSpecificOutput;
+	}
+
+	/**
+	 * Stamps an incoming message and either runs it as a command or broadcasts it to the client's room. A message
+	 * with a line break is refused, as every client it reached would otherwise read the lines after the break as
+	 * lines from the server. Holds the session's lock, so a rename forced by another node never lands halfway
+	 * through a command
+	 * @param message The message received from the client
+	 * @throws IOException If the chat log could not be written
+	 */
+	public void handleMessage(MessageHandler message) throws IOException {
+		lock.lock();
+		try {
+			long received = System.nanoTime();
+			messagesIn++;
+			server.metrics.messagesIn.increment();
+			message.setTimestamp(CoarseClock.minute());
+			message.setUserLabel(clientName);
+			try {
+				String text = message.getMessage();
+				if (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0)
+					throw new UnknownCommandException("Messages can't contain line breaks");
+				if(message.isCommand()){
+					handleCommand(message.getMessage());
+				}
+				else{
+					Room target = currentRoom();
+					String tempMes = message.toString();
+					target.say(tempMes, connectionId);
+					server.metrics.receiveToBroadcast.record((System.nanoTime() - received) / 1000);
+					server.logChat(target.logLine(tempMes));
+				}
+			} catch (UnknownCommandException e) {
+				server.metrics.errors.increment();
+				clientSpecificOutput.println(e.getMessage());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The room what the client says goes to
+	 * @throws UnknownCommandException If the client has parted every room
+	 */
+	private Room currentRoom() throws UnknownCommandException {
+		Room current = room;
+		if (current == null)
+			throw new UnknownCommandException("You are not in a room, /join #room to talk");
+		return current;
+	}
+
+	/**
+	 * Cleans up after a client that went away without sending "/disconnect". A client that had joined keeps its
+	 * name and its place on everybody's user list for the resume grace period, in case it reconnects
+	 */
+	public void connectionLost() {
+		boolean hold = joined && resumeToken != null && server.resumeTokens.holdsSessions();
+		if (!state.compareAndSet(LIVE, hold ? HELD : CLOSED))
+			return;
+		server.metrics.connections.decrementAndGet();
+		server.metrics.disconnected(slow ? Metrics.SLOW : hold ? Metrics.HELD : Metrics.LOST);
+		if (hold)
+		{
+			server.debug(clientName + " dropped, holding the session for it to resume");
+			server.resumeTokens.hold(resumeToken, this);
+		}
+		else
+			leave();
+		try {
+			closeTransport();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Ends a held session whose client didn't come back in time
+	 */
+	void expire() {
+		if (state.compareAndSet(HELD, CLOSED))
+		{
+			server.metrics.disconnected(Metrics.EXPIRED);
+			leave();
+		}
+	}
+
+	//tells everybody the client has gone, if it ever joined, and forgets its token so the session can be collected
+	private void leave() {
+		server.resumeTokens.revoke(resumeToken, this);
+		server.registry.remove(this);
+		if (!joined)
+			return;
+		server.debug(clientName + " disconnected");
+		leaveRooms(clientName + " has disconnected from the server");
+	}
+
+	//takes the client out of every room it is in, telling each one and the other nodes
+	private void leaveRooms(String notice) {
+		lock.lock();
+		try {
+			room = null;
+			for (Room left: rooms)
+			{
+				left.say(notice);
+				server.partRoom(this, left);
+			}
+			rooms.clear();
+			server.cluster.gone(clientName);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands this session over to a connection resuming it. A connection that is still open, because it hasn't
+	 * noticed it is dead yet or the client opened a new one anyway, is closed without anybody being told
+	 * @return False if the session has already ended
+	 */
+	private boolean takeOver() {
+		if (state.compareAndSet(HELD, TAKEN))
+			return true;
+		if (!state.compareAndSet(LIVE, TAKEN))
+			return false;
+		server.metrics.connections.decrementAndGet();
+		server.metrics.disconnected(Metrics.REPLACED);
+		try {
+			closeTransport();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/**
+	 * Every command a client can send. The ones with a description are listed by "/cmdlist" in this order
+	 */
+	private static final CommandTable COMMANDS = new CommandTable();
+	static {
+		COMMANDS.register(new Command("/disconnect", 0, "/disconnect", "disconnect from server") {
+			void run(ClientSession session, CommandLine line) throws IOException {
+				session.killConnection();
+			}
+		});
+		COMMANDS.register(new Command("/whois", 1, "/whois <NICK>", "obtain client IP for <NICK>") {
+			void run(ClientSession session, CommandLine line) {
+				session.whois(line.get(1));
+			}
+		});
+		COMMANDS.register(new Command("/msg", 2, "/msg <NICK> <MESSAGE>", "send private messages to <NICK>") {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.whisper(line.get(1), line.rest(2));
+			}
+		});
+		COMMANDS.register(new Command("/nick", 1, "/nick <NAME>", "change nick to <NAME>") {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.changeNick(line.get(1));
+			}
+		});
+		COMMANDS.register(new Command("/me", 1, "/me <EMOTE>", "emote a message that will start with your name") {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.currentRoom().say("#  " + session.clientName + " " + line.rest(1), session.connectionId);
+			}
+		});
+		COMMANDS.register(new Command("/slap", 1, "/slap <NAME>", "perform the slap emote") {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.slap(line.get(1));
+			}
+		});
+		COMMANDS.register(new Command("/join", 1, "/join <#ROOM>", "join <#ROOM>, or switch to it, and talk there") {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.joinRoom(line.get(1));
+			}
+		});
+		COMMANDS.register(new Command("/part", 0, "/part [#ROOM]", "leave <#ROOM>, or the room you are talking in") {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.partRoom(line.arguments() > 0 ? line.get(1) : null);
+			}
+		});
+		COMMANDS.register(new Command("/rooms", 0, "/rooms", "list the rooms and how many are in each") {
+			void run(ClientSession session, CommandLine line) {
+				session.clientSpecificOutput.println("Rooms: " + session.server.roomListing());
+			}
+		});
+		//answered with text rather than by opening anything on the server, which may have no display
+		COMMANDS.register(new Command("/help", 0, "/help", "list the commands") {
+			void run(ClientSession session, CommandLine line) {
+				session.clientSpecificOutput.println("Commands:");
+				session.clientSpecificOutput.println(COMMANDS.listing());
+			}
+		});
+		COMMANDS.register(new Command("/cmdlist", 0, "/cmdlist", null) {
+			void run(ClientSession session, CommandLine line) {
+				session.clientSpecificOutput.println(COMMANDS.listing());
+			}
+		});
+
+		//sent by the client program itself rather than typed
+		COMMANDS.register(new Command("/connect", 1, "/connect <NAME>", null) {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.join(line.get(1));
+			}
+		});
+		COMMANDS.register(new Command("/resume", 2, "/resume <TOKEN> <SEQUENCE> [#ROOM=SEQUENCE...]", null) {
+			void run(ClientSession session, CommandLine line) {
+				session.resume(line);
+			}
+		});
+		COMMANDS.register(new Command("/roster", 0, "/roster", null) {
+			void run(ClientSession session, CommandLine line) {
+				Room current = session.room;
+				if (current != null)
+					current.sendRoster(session);
+			}
+		});
+
+		//for operators, who know they are there
+		COMMANDS.register(new Command("/oper", 1, "/oper <PASSWORD>", null) {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.becomeOperator(line.get(1));
+			}
+		});
+		COMMANDS.register(new Command("/stats", 0, "/stats [NICK]", null) {
+			void run(ClientSession session, CommandLine line) throws UnknownCommandException {
+				session.showStats(line.arguments() > 0 ? line.get(1) : null);
+			}
+		});
+	}
+
+	//Reused for every command this client sends, a session only handles one message at a time
+	private CommandLine commandLine = new CommandLine();
+
+	/**
+	 * Will carry out commands passed through to the server from the Client
+	 * @throws IOException If the client's connection or the chat log fails
+	 * @throws UnknownCommandException If the command is not recognised or could not be carried out
+	 */
+	private void handleCommand(String command) throws IOException, UnknownCommandException {
+		commandLine.parse(command);
+		Command found = COMMANDS.find(commandLine);
+		server.metrics.command(found);
+		COMMANDS.dispatch(this, commandLine, found);
+	}
+
+	/**
+	 * Joins the chat under the requested name, or that name with "_clone" added until it is unique
+	 * @param requestedName The name the client asked for
+	 * @throws UnknownCommandException If the client has already joined, as a new name has to go through "/nick"
+	 * for its rooms and the other nodes to hear of it
+	 */
+	private void join(String requestedName) throws UnknownCommandException {
+		if (joined)
+			throw new UnknownCommandException("You are already connected as " + clientName
+					+ ", use /nick to change your name");
+
+		//clientName has to be unique across the cluster, claiming it adds the user to the current user list
+		String newName = requestedName;
+		while (server.cluster.holds(newName) || !server.registry.claim(this, newName))
+			newName = newName.concat("_clone");
+		clientName = newName;
+
+		if (!newName.equals(requestedName))
+		{
+			clientSpecificOutput.println("Your username is already in use and has been changed to " + clientName);
+			clientSpecificOutput.println("/nick " + clientName);
+		}
+
+		//show what was said recently in the lobby before anything live
+		joined = true;
+		server.cluster.connected(clientName);
+		clientSpecificOutput.println("/room " + Room.LOBBY);
+		server.joinRoom(this, Room.LOBBY);
+		rooms.add(server.lobby);
+		room = server.lobby;
+		server.cluster.joined(server.lobby, clientName);
+		//only binary clients see sequence numbers, so only they can say where to resume from
+		if (binaryProtocol && server.resumeTokens.holdsSessions())
+		{
+			resumeToken = server.resumeTokens.issue(this);
+			clientSpecificOutput.println("/resume-token " + resumeToken);
+		}
+
+		//notify all clients as necessary and store info in the chatlog
+		String temp = clientName + " has connected to the server from " + clientAddress.toString();
+		server.debug(clientName + " connected");
+		//send join command back to client
+		clientSpecificOutput.println("/join " + clientName);
+		server.lobby.say(temp);
+
+		server.logChat(temp+"\n");
+	}
+
+	/**
+	 * Joins a room, or switches to one the client is already in, so that what the client says goes there. The
+	 * client is sent "/room #ROOM" first, then the room's recent history and user list
+	 * @param requestedRoom The room's name
+	 * @throws UnknownCommandException If the name isn't a valid room name or the client hasn't connected
+	 */
+	private void joinRoom(String requestedRoom) throws UnknownCommandException {
+		String name = Room.normalise(requestedRoom);
+		if (name == null)
+			throw new UnknownCommandException("Room names are # followed by up to 32 letters, digits, - or _");
+		if (!joined)
+			throw new UnknownCommandException("Connect before joining a room");
+
+		for (Room joinedRoom: rooms)
+		{
+			if (joinedRoom.getName().equals(name))
+			{
+				room = joinedRoom;
+				clientSpecificOutput.println("/room " + name);
+				joinedRoom.sendRoster(this);
+				return;
+			}
+		}
+
+		clientSpecificOutput.println("/room " + name);
+		Room joinedRoom = server.joinRoom(this, name);
+		rooms.add(joinedRoom);
+		room = joinedRoom;
+		server.cluster.joined(joinedRoom, clientName);
+
+		String temp = clientName + " has joined " + name;
+		server.debug(temp);
+		joinedRoom.say(temp);
+		server.logChat(joinedRoom.logLine(temp) + "\n");
+	}
+
+	/**
+	 * Leaves a room. If the client was talking in it, it talks in the lobby next, or another room it is in, and is
+	 * sent "/room #ROOM" and the user list, or a bare "/room" if it is in no room at all
+	 * @param requestedRoom The room's name, or null for the room the client is talking in
+	 * @throws UnknownCommandException If the client isn't in the room
+	 */
+	private void partRoom(String requestedRoom) throws UnknownCommandException {
+		Room left = null;
+		if (requestedRoom == null)
+			left = currentRoom();
+		else
+		{
+			String name = Room.normalise(requestedRoom);
+			for (Room joinedRoom: rooms)
+				if (joinedRoom.getName().equals(name))
+					left = joinedRoom;
+			if (left == null)
+				throw new UnknownCommandException("You are not in " + requestedRoom);
+		}
+
+		String temp = clientName + " has left " + left.getName();
+		left.say(temp);
+		rooms.remove(left);
+		server.partRoom(this, left);
+		server.cluster.parted(left, clientName);
+		clientSpecificOutput.println("/parted " + left.getName());
+		server.debug(temp);
+		server.logChat(left.logLine(temp) + "\n");
+
+		if (room != left)
+			return;
+		Room next = rooms.contains(server.lobby) ? server.lobby : (rooms.isEmpty() ? null : rooms.get(0));
+		room = next;
+		if (next == null)
+			clientSpecificOutput.println("/room");
+		else
+		{
+			clientSpecificOutput.println("/room " + next.getName());
+			next.sendRoster(this);
+		}
+	}
+
+	/**
+	 * Takes over the session of a client whose connection dropped, keeping its name and its rooms and sending it
+	 * only the broadcasts it missed in each. Nobody else is told, as far as they are concerned the client never
+	 * left. Answers "/resume-failed" if the session can't be resumed, and the client joins afresh
+	 * @param line "/resume TOKEN SEQUENCE #ROOM=SEQUENCE...", the sequence numbers being those of the last broadcast
+	 * the client received in the lobby and in each other room
+	 */
+	private void resume(CommandLine line) {
+		Map<String, Long> lastSeen = new HashMap<String, Long>();
+		try {
+			lastSeen.put(Room.LOBBY, Long.valueOf(line.get(2)));
+			for (int i = 3; i <= line.arguments(); i++)
+			{
+				String position = line.get(i);
+				int split = position.indexOf('=');
+				if (split < 0)
+					throw new NumberFormatException(position);
+				String name = Room.normalise(position.substring(0, split));
+				if (name != null)
+					lastSeen.put(name, Long.valueOf(position.substring(split + 1)));
+			}
+		} catch (NumberFormatException e) {
+			lastSeen = null;
+		}
+		ClientSession old = joined || lastSeen == null ? null : server.resumeTokens.take(line.get(1));
+		if (old == null || !old.takeOver())
+		{
+			clientSpecificOutput.println("/resume-failed");
+			return;
+		}
+
+		clientName = old.clientName;
+		server.registry.transfer(old, this);
+		joined = true;
+		server.debug(clientName + " resumed its session");
+
+		//the client needs to know where it is talking before the rooms' lines arrive
+		room = old.room;
+		clientSpecificOutput.println(room == null ? "/room" : "/room " + room.getName());
+		boolean complete = true;
+		for (Room joinedRoom: old.rooms)
+		{
+			Long after = lastSeen.get(joinedRoom.getName());
+			complete &= joinedRoom.takeOver(old, this, after == null ? 0 : after.longValue());
+			rooms.add(joinedRoom);
+		}
+		if (!complete)
+			clientSpecificOutput.println("Some of what was said while you were away is no longer available");
+		resumeToken = server.resumeTokens.issue(this);
+		clientSpecificOutput.println("/resume-token " + resumeToken);
+	}
+
+	/**
+	 * Changes this client's name
+	 * @param newName The name wanted
+	 * @throws UnknownCommandException If another client has the name
+	 */
+	private void changeNick(String newName) throws UnknownCommandException {
+		if (server.cluster.holds(newName) || !server.registry.claim(this, newName))
+			throw new UnknownCommandException("Username already in use!");
+		rename(newName);
+	}
+
+	/**
+	 * Renames this client after a user of another node turned out to have the same name, with "_clone" added until
+	 * the name is unique, as when joining
+	 * @param nick The name of the other node's user
+	 */
+	void renameAfterClash(String nick) {
+		lock.lock();
+		try {
+			//the client may have changed name or left while the other node's news was on its way
+			if (state.get() == CLOSED || !SessionRegistry.normalise(clientName).equals(SessionRegistry.normalise(nick)))
+				return;
+			String newName = clientName;
+			do
+				newName = newName.concat("_clone");
+			while (server.cluster.holds(newName) || !server.registry.claim(this, newName));
+			clientSpecificOutput.println("Your username is in use on another server and has been changed to "
+					+ newName);
+			rename(newName);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//tells everybody about a name already claimed
+	private void rename(String newName) {
+		server.debug(clientName + " changed name to " + newName);
+
+		String temp = clientName + " is now known as " + newName;
+		String oldName = clientName;
+		clientName = newName;
+		clientSpecificOutput.println("/nick " + newName);
+
+		for (Room joinedRoom: rooms)
+		{
+			joinedRoom.say(temp);
+			joinedRoom.rename(oldName, newName);
+		}
+		server.cluster.renamed(oldName, newName);
+
+		server.logChat(temp + "\n");
+	}
+
+	/**
+	 * Tells this client the address another user connected from
+	 * @param queryName The user asked about
+	 */
+	private void whois(String queryName) {
+		ClientSession target = server.registry.find(queryName);
+
+		if(target != null){
+			clientSpecificOutput.println(target.clientName + ":  " + target.getAddress().toString());
+		}
+
+		else if (server.cluster.holds(queryName))
+			clientSpecificOutput.println(queryName + ":  on server " + server.cluster.nodeOf(queryName));
+
+		else
+			clientSpecificOutput.println("The user is not present in the channel");
+	}
+
+	/**
+	 * Performs the slap emote in the client's room
+	 * @param targetUsername The user being slapped
+	 * @throws UnknownCommandException If the client has parted every room
+	 */
+	private void slap(String targetUsername) throws UnknownCommandException {
+		ClientSession target = server.registry.find(targetUsername);
+		String targetName = target != null ? target.clientName : server.cluster.holds(targetUsername) ? targetUsername : null;
+
+		if(targetName != null){
+			 String message = "#  " + clientName + " slaps " + targetName + " around a bit with a large trout";
+
+			 currentRoom().say(message, connectionId);
+		}
+
+		else{
+			clientSpecificOutput.println("That user does not exist");
+		}
+	}
+
+	/**
+	 * Sends a private message to a user
+	 * @param targetUsername The user to send it to
+	 * @param message The message
+	 * @throws UnknownCommandException If the user isn't connected
+	 */
+	private void whisper(String targetUsername, String message) throws UnknownCommandException {
+		ClientSession target = server.registry.find(targetUsername);
+
+		if (target == this)
+		{
+			clientSpecificOutput.println("Cannot whisper to yourself!");
+			return;
+		}
+
+		//a user of another node is passed on to its server
+		String targetName = targetUsername;
+		if (target != null)
+		{
+			targetName = target.clientName;
+			target.send(clientName + " whispers : " + message);
+		}
+		else if (!server.cluster.whisper(clientName, targetUsername, message))
+			throw new UnknownCommandException("User " + targetUsername + " not connected to server.");
+
+		clientSpecificOutput.println("You whisper to " + targetName + ": " + message);
+
+		String temp = clientName + "->" + targetName + " : " + message;
+		server.logChat(temp + "\n");
+
+		server.debug(temp);
+	}
+
+	/**
+	 * Makes the client an operator, if it knows the operator password
+	 * @param password The password it sent
+	 * @throws UnknownCommandException If the password is wrong, or no password is set
+	 */
+	private void becomeOperator(String password) throws UnknownCommandException {
+		if (!server.isOperatorPassword(password))
+		{
+			server.debug(clientName + " sent a wrong operator password from " + clientAddress);
+			throw new UnknownCommandException("Wrong operator password");
+		}
+		operator = true;
+		server.debug(clientName + " is now an operator");
+		clientSpecificOutput.println("You are now an operator, /stats shows the server's statistics");
+	}
+
+	/**
+	 * Sends an operator the server's statistics, or one user's
+	 * @param nick The user to show, or null for the whole server
+	 * @throws UnknownCommandException If the client isn't an operator, or the user isn't connected to this server
+	 */
+	private void showStats(String nick) throws UnknownCommandException {
+		if (!operator)
+			throw new UnknownCommandException("Only operators can see statistics, /oper <PASSWORD> first");
+		if (nick == null)
+		{
+			for (String line: server.metrics.report())
+				clientSpecificOutput.println(line);
+			return;
+		}
+		ClientSession target = server.registry.find(nick);
+		if (target == null)
+			throw new UnknownCommandException("User " + nick + " not connected to server.");
+		clientSpecificOutput.println(target.stats());
+	}
+
+	/**
+	 * Method to close all input and output streams as well as the connection
+	 */
+	void killConnection() throws IOException{
+		if (!state.compareAndSet(LIVE, CLOSED))
+			return;
+		server.metrics.connections.decrementAndGet();
+		server.metrics.disconnected(Metrics.QUIT);
+		server.resumeTokens.revoke(resumeToken, this);
+		String temp = clientName+" has disconnected from the server";
+		server.registry.remove(this);
+		if (joined)
+			leaveRooms(temp);
+		server.logChat(temp+"\n");
+
+		server.debug(clientName + " disconnected");
+
+		clientSpecificOutput.println("/disconnect");
+
+		closeTransport();
+		clientSpecificOutput.close();
+	}
+}
@@ -0,0 +1,673 @@
+package chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links servers into a cluster that shares its rooms, so users connected to different servers can talk as if they
+ * were on one. Every node dials every other node listed in its peers and tells it, over that link only, what its own
+ * users do: who connected, was renamed or left, who joined or parted which room, what was said in a room that node
+ * has members in and private messages for that node's users. A node never passes on what it heard from another, so
+ * the peers of each node must list every other node.
+ *
+ * Events are lines of UTF-8, each sent as its length and its bytes:
+ *   CHALLENGE NONCE             sent by the node dialled as soon as a link opens
+ *   HELLO NONCE PROOF NODE      the dialling node's answer, with a challenge of its own
+ *   HELLO PROOF NODE            the dialled node's answer to that, or REFUSED if the proof was wrong
+ *   NICK NAME           a user connected
+ *   RENAME OLD NEW      a user changed name
+ *   GONE NAME           a user left, and so every room it was in
+ *   JOIN #ROOM NAME     a user joined a room
+ *   PART #ROOM NAME     a user parted a room
+ *   SAY #ROOM LINE      a line said in a room, delivered to local members only
+ *   MSG FROM TO TEXT    a private message
+ *
+ * Each PROOF is the HMAC-SHA256 of the other node's NONCE and the sender's id, keyed with the cluster secret, so
+ * both ends know the other has the secret without it ever crossing the network, and nothing is accepted from a
+ * node that doesn't. Without a secret the proofs are "-" and not checked, which is only allowed while the cluster
+ * port listens on a loopback address.
+ *
+ * When a link comes up the node dialling sends everything about its users afresh, and when a link drops the node
+ * dialled takes that node's users out of every room, so after a blip the two agree again. Lines sent while a link
+ * was down are lost. Receiving an event twice does no harm, so a change racing with the snapshot sent when a link
+ * comes up can safely be sent after it too.
+ *
+ * Nicknames are claimed on the node a user connects to, refusing names already known to be used elsewhere. Two
+ * nodes can still hand out the same name at the same time; when either hears of the clash, the user of the node
+ * whose id sorts later is renamed, the same way a clash on one server is settled.
+ */
+class Cluster {
+	//How long to wait before dialling a peer again
+	private static final long RETRY_MILLIS = 1000;
+
+	//How many events wait for a link before it is dropped and set up again from scratch
+	private static final int LINK_CAPACITY = 65536;
+
+	//The longest event accepted
+	private static final int MAX_EVENT_BYTES = 1024 * 1024;
+
+	//How long either end of a new link waits for the other's half of the handshake
+	private static final int HANDSHAKE_MILLIS = 5000;
+
+	private ChatRelayServer server;
+	private String nodeId;
+	private int port;
+	private String bind;
+	private String clusterBind;
+	private String secret;
+	private String peers;
+
+	//Where handshake challenges come from
+	private SecureRandom random = new SecureRandom();
+
+	//A link to each peer, carrying this node's events to it
+	private List<Link> links = new CopyOnWriteArrayList<Link>();
+
+	//What each node that dialled this one has told it, by node id
+	private ConcurrentHashMap<String, Inbound> nodes = new ConcurrentHashMap<String, Inbound>();
+
+	//The node each other node's user is connected to, by normalised nickname
+	private ConcurrentHashMap<String, String> remoteNicks = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param server The server this node runs
+	 * @param config The settings, of which nodeId, clusterPort, clusterBind, clusterSecret and peers are used
+	 * @throws IllegalArgumentException If the cluster port would listen beyond this host without a secret
+	 */
+	Cluster(ChatRelayServer server, ServerConfig config) {
+		this.server = server;
+		port = config.getInt("clusterPort");
+		bind = config.get("bind").trim();
+		clusterBind = config.get("clusterBind").trim();
+		secret = config.get("clusterSecret");
+		peers = config.get("peers").trim();
+		nodeId = config.get("nodeId").trim();
+		if (nodeId.length() == 0)
+			nodeId = defaultNodeId();
+		if (isEnabled() && secret.length() == 0 && !isLoopback(clusterBind))
+			throw new IllegalArgumentException("A cluster port listening beyond this host, on "
+					+ (clusterBind.length() == 0 ? "every address" : clusterBind) + ", needs a clusterSecret");
+	}
+
+	//true if the address only reaches this host, false for every address or an unknown one
+	private static boolean isLoopback(String address) {
+		if (address.length() == 0)
+			return false;
+		try {
+			return InetAddress.getByName(address).isLoopbackAddress();
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+
+	//this host's name and the cluster port
+	private String defaultNodeId() {
+		String host = bind;
+		if (host.length() == 0)
+		{
+			try {
+				host = InetAddress.getLocalHost().getHostName();
+			} catch (IOException e) {
+				host = "localhost";
+			}
+		}
+		return host + ":" + port;
+	}
+
+	/**
+	 * @return True if the server was given a cluster port
+	 */
+	boolean isEnabled() {
+		return port > 0;
+	}
+
+	/**
+	 * @return This node's id
+	 */
+	String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Listens for other nodes on the cluster port and starts dialling each peer. Does nothing unless clustered
+	 * @throws IOException If the cluster port could not be opened
+	 * @throws IllegalArgumentException If a peer isn't given as HOST:PORT
+	 */
+	void start() throws IOException {
+		if (!isEnabled())
+			return;
+		final ServerSocket listener = new ServerSocket();
+		listener.bind(clusterBind.length() == 0 ? new InetSocketAddress(port) : new InetSocketAddress(clusterBind, port));
+		Thread accepter = new Thread("Cluster") {
+			@Override
+			public void run() {
+				try {
+					while (true)
+					{
+						Socket socket = listener.accept();
+						socket.setTcpNoDelay(true);
+						new Inbound(socket).start();
+					}
+				} catch (IOException e) {
+					server.debug("Cluster port closed: " + e.getMessage());
+				}
+			}
+		};
+		accepter.setDaemon(true);
+		accepter.start();
+		server.debug("Cluster node " + nodeId + " listening on " + listener.getLocalSocketAddress());
+
+		for (String peer: peers.split(","))
+		{
+			peer = peer.trim();
+			if (peer.length() == 0)
+				continue;
+			int split = peer.lastIndexOf(':');
+			if (split <= 0)
+				throw new IllegalArgumentException("Peers are HOST:PORT, not " + peer);
+			Link link;
+			try {
+				link = new Link(peer.substring(0, split), Integer.parseInt(peer.substring(split + 1)));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Peers are HOST:PORT, not " + peer);
+			}
+			links.add(link);
+			link.start();
+		}
+	}
+
+	/**
+	 * @param nick A nickname in any case
+	 * @return True if a user of another node goes by the name
+	 */
+	boolean holds(String nick) {
+		return remoteNicks.containsKey(SessionRegistry.normalise(nick));
+	}
+
+	/**
+	 * @param nick A nickname in any case
+	 * @return The id of the node the user is connected to, or null if it isn't a user of another node
+	 */
+	String nodeOf(String nick) {
+		return remoteNicks.get(SessionRegistry.normalise(nick));
+	}
+
+	/**
+	 * Tells every node a local user connected
+	 * @param nick The user's name
+	 */
+	void connected(String nick) {
+		send("NICK " + nick);
+	}
+
+	/**
+	 * Tells every node a local user changed name
+	 * @param oldName The name it went by
+	 * @param newName The name it goes by now
+	 */
+	void renamed(String oldName, String newName) {
+		send("RENAME " + oldName + " " + newName);
+	}
+
+	/**
+	 * Tells every node a local user left, and so parted every room
+	 * @param nick The user's name
+	 */
+	void gone(String nick) {
+		send("GONE " + nick);
+	}
+
+	/**
+	 * Tells every node a local user joined a room
+	 * @param room The room
+	 * @param nick The user's name
+	 */
+	void joined(Room room, String nick) {
+		send("JOIN " + room.getName() + " " + nick);
+	}
+
+	/**
+	 * Tells every node a local user parted a room
+	 * @param room The room
+	 * @param nick The user's name
+	 */
+	void parted(Room room, String nick) {
+		send("PART " + room.getName() + " " + nick);
+	}
+
+	/**
+	 * Passes a line said by a local user on to the nodes with members in its room
+	 * @param room The room
+	 * @param line The line
+	 */
+	void said(Room room, String line) {
+		String event = null;
+		for (Link link: links)
+		{
+			String peer = link.peerId;
+			if (peer != null && room.hasNode(peer))
+			{
+				if (event == null)
+					event = "SAY " + room.getName() + " " + line;
+				link.offer(event);
+			}
+		}
+	}
+
+	/**
+	 * Sends a private message to a user of another node
+	 * @param from The sender's name
+	 * @param to The name of the user it is for
+	 * @param text The message
+	 * @return False if the user isn't known to be on another node, or its node can't be reached
+	 */
+	boolean whisper(String from, String to, String text) {
+		String node = nodeOf(to);
+		if (node == null)
+			return false;
+		for (Link link: links)
+			if (node.equals(link.peerId))
+				return link.offer("MSG " + from + " " + to + " " + text);
+		return false;
+	}
+
+	//sends an event over every link
+	private void send(String event) {
+		for (Link link: links)
+			link.offer(event);
+	}
+
+	private static void write(DataOutputStream out, String event) throws IOException {
+		byte[] bytes = event.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_EVENT_BYTES)
+			throw new IOException("Event of " + length + " bytes");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	//a fresh challenge for the other end of a link to prove it knows the secret with
+	private String challenge() {
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		return hex(nonce);
+	}
+
+	/**
+	 * @param challenge The challenge the other end of the link sent
+	 * @param node The id of the node answering it
+	 * @return The HMAC-SHA256 of the challenge and the node's id keyed with the secret, or "-" without a secret
+	 * @throws IOException If the proof could not be worked out
+	 */
+	private String proof(String challenge, String node) throws IOException {
+		if (secret.length() == 0)
+			return "-";
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+			return hex(mac.doFinal((challenge + " " + node).getBytes("UTF-8")));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Can't prove the cluster secret: " + e.getMessage());
+		}
+	}
+
+	//true if the proof is the one a node knowing the secret would have sent, always without a secret
+	private boolean proves(String proof, String challenge, String node) throws IOException {
+		if (secret.length() == 0)
+			return true;
+		return MessageDigest.isEqual(proof(challenge, node).getBytes("UTF-8"), proof.getBytes("UTF-8"));
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes)
+			hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+		return hex.toString();
+	}
+
+	//==============================================================================================================
+	/**
+	 * The link to one peer, dialled and kept up by a thread of its own. Events are queued and written in batches,
+	 * so a node is never held up by a slow peer; a peer that falls too far behind has its link dropped and set up
+	 * again, which sends it everything afresh
+	 */
+	private class Link extends Thread {
+		//Queued in place of the events dropped when the queue overflowed, so the writer drops the connection
+		private final String reset = new String("RESET");
+
+		private String host;
+		private int peerPort;
+		private LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>(LINK_CAPACITY);
+
+		//The peer's id once it has answered, null while the link is down. Only changed holding this link's lock,
+		//as are the queue's contents whenever the link goes up or down
+		volatile String peerId = null;
+
+		Link(String host, int peerPort) {
+			super("Cluster link " + host + ":" + peerPort);
+			setDaemon(true);
+			this.host = host;
+			this.peerPort = peerPort;
+		}
+
+		/**
+		 * Queues an event for the peer
+		 * @param event The event
+		 * @return False if the link is down
+		 */
+		synchronized boolean offer(String event) {
+			if (peerId == null)
+				return false;
+			if (queue.offer(event))
+				return true;
+			server.debug("Node " + peerId + " is not keeping up, linking to it again");
+			down();
+			queue.offer(reset);
+			return false;
+		}
+
+		//marks the link down and drops whatever was waiting, must be called holding this link's lock
+		private void down() {
+			peerId = null;
+			queue.clear();
+		}
+
+		@Override
+		public void run() {
+			boolean reported = false;
+			while (true)
+			{
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(host, peerPort), (int)RETRY_MILLIS * 5);
+					socket.setTcpNoDelay(true);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+					DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					socket.setSoTimeout(HANDSHAKE_MILLIS);
+					String challenge = read(in);
+					if (!challenge.startsWith("CHALLENGE "))
+						throw new IOException("Not a cluster node");
+					String ours = challenge();
+					write(out, "HELLO " + ours + " " + proof(challenge.substring(10), nodeId) + " " + nodeId);
+					out.flush();
+					String[] hello = read(in).split(" ", 3);
+					if (hello[0].equals("REFUSED"))
+						throw new IOException("It refused this node's cluster secret");
+					if (hello.length < 3 || !hello[0].equals("HELLO"))
+						throw new IOException("Not a cluster node");
+					if (!proves(hello[1], ours, hello[2]))
+						throw new IOException("It doesn't know the cluster secret");
+					socket.setSoTimeout(0);
+					String peer = hello[2];
+					if (peer.equals(nodeId))
+					{
+						server.debug("Peer " + host + ":" + peerPort + " is this node, not linking to it");
+						return;
+					}
+					up(peer);
+					server.debug("Linked to node " + peer);
+					reported = false;
+
+					while (true)
+					{
+						String event = queue.take();
+						do
+						{
+							if (event == reset)
+								throw new IOException("it fell behind");
+							write(out, event);
+						} while ((event = queue.poll()) != null);
+						out.flush();
+					}
+				} catch (IOException e) {
+					if (!reported)
+						server.debug("No link to node at " + host + ":" + peerPort + ": " + e.getMessage());
+					reported = true;
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					synchronized (this) {
+						down();
+					}
+					try {
+						socket.close();
+					} catch (IOException e) {
+						//already gone
+					}
+				}
+				try {
+					Thread.sleep(RETRY_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		//marks the link up and queues everything about this node's users, ahead of any change made after it
+		private synchronized void up(String peer) {
+			queue.clear();
+			for (ClientSession session: server.registry.sessions())
+			{
+				String nick = session.clientName;
+				if (nick == null)
+					continue;
+				queue.offer("NICK " + nick);
+				for (Room room: session.rooms())
+					queue.offer("JOIN " + room.getName() + " " + nick);
+			}
+			peerId = peer;
+		}
+	}
+
+	//==============================================================================================================
+	/**
+	 * A link from another node, read by a thread of its own. Keeps the users that node has told this one about and
+	 * the rooms each is in, to take them all out again if the link drops
+	 */
+	private class Inbound extends Thread {
+		private Socket socket;
+		private String node = null;
+
+		//Guarded by this: each user's rooms by name, and whether the link has been dropped
+		private Map<String, Set<String>> users = new HashMap<String, Set<String>>();
+		private boolean dropped = false;
+
+		Inbound(Socket socket) {
+			super("Cluster inbound " + socket.getRemoteSocketAddress());
+			setDaemon(true);
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				socket.setSoTimeout(HANDSHAKE_MILLIS);
+				String challenge = challenge();
+				write(out, "CHALLENGE " + challenge);
+				out.flush();
+				String[] hello = read(in).split(" ", 4);
+				if (hello.length < 4 || !hello[0].equals("HELLO"))
+					throw new IOException("Not a cluster node");
+				if (!proves(hello[2], challenge, hello[3]))
+				{
+					server.debug("Refused a cluster link from " + socket.getRemoteSocketAddress()
+							+ ", it doesn't know the cluster secret");
+					write(out, "REFUSED");
+					out.flush();
+					return;
+				}
+				socket.setSoTimeout(0);
+				node = hello[3];
+				write(out, "HELLO " + proof(hello[1], nodeId) + " " + nodeId);
+				out.flush();
+				if (node.equals(nodeId))
+					return;
+
+				//a node that dials again has lost everything it said before
+				Inbound previous = nodes.put(node, this);
+				if (previous != null)
+					previous.drop();
+				server.debug("Node " + node + " linked");
+
+				while (true)
+					apply(read(in));
+			} catch (IOException e) {
+				//the node went away
+			} finally {
+				if (node != null && nodes.remove(node, this))
+					server.debug("Node " + node + " unlinked");
+				drop();
+			}
+		}
+
+		//takes the node's users out of every room, telling the local members
+		private synchronized void drop() {
+			if (dropped)
+				return;
+			dropped = true;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//already gone
+			}
+			for (Map.Entry<String, Set<String>> user: users.entrySet())
+			{
+				String nick = user.getKey();
+				remoteNicks.remove(SessionRegistry.normalise(nick), node);
+				for (String name: user.getValue())
+				{
+					Room room = server.findRoom(name);
+					if (room != null)
+						room.broadcast(nick + " has disconnected from the server (lost the link to " + node + ")");
+					server.partRemote(node, name, nick);
+				}
+			}
+			users.clear();
+		}
+
+		//applies one event from the node
+		private synchronized void apply(String event) {
+			if (dropped)
+				return;
+			int split = event.indexOf(' ');
+			if (split < 0)
+				return;
+			String type = event.substring(0, split);
+			String rest = event.substring(split + 1);
+			int second = rest.indexOf(' ');
+			String first = second < 0 ? rest : rest.substring(0, second);
+			String last = second < 0 ? "" : rest.substring(second + 1);
+
+			if (type.equals("NICK"))
+				add(first);
+			else if (type.equals("RENAME"))
+				rename(first, last);
+			else if (type.equals("GONE"))
+				remove(first);
+			else if (type.equals("JOIN"))
+			{
+				if (first.equals(Room.normalise(first)) && add(last).add(first))
+					server.joinRemote(node, first, last);
+			}
+			else if (type.equals("PART"))
+			{
+				Set<String> rooms = users.get(last);
+				if (rooms != null && rooms.remove(first))
+					server.partRemote(node, first, last);
+			}
+			else if (type.equals("SAY"))
+			{
+				Room room = server.findRoom(first);
+				if (room != null)
+					room.broadcast(last);
+			}
+			else if (type.equals("MSG"))
+			{
+				int third = last.indexOf(' ');
+				if (third < 0)
+					return;
+				ClientSession target = server.registry.find(last.substring(0, third));
+				if (target != null)
+					target.send(first + " whispers : " + last.substring(third + 1));
+			}
+		}
+
+		//adds a user if it is new, settling any clash with a local user, and returns its rooms
+		private Set<String> add(String nick) {
+			Set<String> rooms = users.get(nick);
+			if (rooms != null)
+				return rooms;
+			rooms = new HashSet<String>();
+			users.put(nick, rooms);
+			remoteNicks.put(SessionRegistry.normalise(nick), node);
+			settleClash(nick);
+			return rooms;
+		}
+
+		private void rename(String oldName, String newName) {
+			Set<String> rooms = users.remove(oldName);
+			if (rooms == null)
+			{
+				add(newName);
+				return;
+			}
+			users.put(newName, rooms);
+			remoteNicks.remove(SessionRegistry.normalise(oldName), node);
+			remoteNicks.put(SessionRegistry.normalise(newName), node);
+			for (String name: rooms)
+			{
+				Room room = server.findRoom(name);
+				if (room != null)
+					room.rename(oldName, newName);
+			}
+			settleClash(newName);
+		}
+
+		private void remove(String nick) {
+			Set<String> rooms = users.remove(nick);
+			if (rooms == null)
+				return;
+			remoteNicks.remove(SessionRegistry.normalise(nick), node);
+			for (String name: new ArrayList<String>(rooms))
+				server.partRemote(node, name, nick);
+		}
+
+		//renames the local user going by a remote user's name, if the remote node's id sorts first
+		private void settleClash(String nick) {
+			ClientSession local = server.registry.find(nick);
+			if (local != null && node.compareTo(nodeId) < 0)
+				local.renameAfterClash(nick);
+		}
+	}
+}
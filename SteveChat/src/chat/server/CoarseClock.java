@@ -0,0 +1,46 @@
+package chat.server;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The time as messages are stamped with it. Every message needs the current minute as "HH:mm", which only
+ * changes once a minute, so rather than formatting a new Date for each one the last minute's string is kept and
+ * only formatted again by the first caller to see the minute roll over. There is no thread keeping it up to date,
+ * so an idle server does no work at all. Reading the clock is one read of the system clock and one volatile read,
+ * and allocates nothing except once a minute.
+ */
+final class CoarseClock {
+	//The minute as a number since the epoch and as a string, swapped together so readers never see one without
+	//the other
+	private static volatile Minute current = new Minute(-1, null);
+
+	private CoarseClock() {
+	}
+
+	/**
+	 * @return The current minute formatted as "HH:mm"
+	 */
+	static String minute() {
+		long now = System.currentTimeMillis();
+		long number = now / 60000;
+		Minute last = current;
+		if (last.number == number)
+			return last.text;
+		//a few threads may format the same minute at once, each with a format of its own, and any of them will do
+		Minute next = new Minute(number, new SimpleDateFormat("HH:mm").format(new Date(now)));
+		if (number > current.number)
+			current = next;
+		return next.text;
+	}
+
+	private static final class Minute {
+		final long number;
+		final String text;
+
+		Minute(long number, String text) {
+			this.number = number;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package chat.server;
+
+import java.io.IOException;
+
+/**
+ * A command a client can send to the server, registered in a CommandTable. The table checks there are enough
+ * arguments before running it, so handlers can read the words they need without checking.
+ */
+abstract class Command {
+	private String name;
+	private int minArguments;
+	private String usage;
+	private String description;
+
+	/**
+	 * @param name The command as typed, including its leading '/'
+	 * @param minArguments The fewest words that must follow the name
+	 * @param usage How to type it, e.g. "/whois <NICK>"
+	 * @param description What it does, shown by "/cmdlist". Null keeps the command out of the list
+	 */
+	Command(String name, int minArguments, String usage, String description) {
+		this.name = name;
+		this.minArguments = minArguments;
+		this.usage = usage;
+		this.description = description;
+	}
+
+	/**
+	 * Carries out the command
+	 * @param session The session that sent it
+	 * @param line The command split into words
+	 * @throws IOException If the client's connection or the chat log fails
+	 * @throws UnknownCommandException To tell the client why the command could not be carried out
+	 */
+	abstract void run(ClientSession session, CommandLine line) throws IOException, UnknownCommandException;
+
+	String getName() {
+		return name;
+	}
+
+	int getMinArguments() {
+		return minArguments;
+	}
+
+	String getUsage() {
+		return usage;
+	}
+
+	String getDescription() {
+		return description;
+	}
+}
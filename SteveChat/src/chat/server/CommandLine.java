@@ -0,0 +1,112 @@
+package chat.server;
+
+/**
+ * A command split into words in one pass. Only the offsets of each word are recorded, a word is copied out of the
+ * command when a handler asks for it, so tokenizing allocates nothing once the offset arrays have grown to fit.
+ * Words are separated by any run of whitespace.
+ *
+ * Each session keeps one and reuses it for every command, so it is not thread safe.
+ */
+class CommandLine {
+	private String text = "";
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+	private int count = 0;
+
+	/**
+	 * Splits a command into words, replacing whatever was parsed before
+	 * @param command The command as typed, including its leading '/'
+	 */
+	void parse(String command) {
+		text = command;
+		count = 0;
+		int length = command.length();
+		int i = 0;
+		while (i < length)
+		{
+			while (i < length && Character.isWhitespace(command.charAt(i)))
+				i++;
+			if (i == length)
+				break;
+			int start = i;
+			while (i < length && !Character.isWhitespace(command.charAt(i)))
+				i++;
+			if (count == starts.length)
+			{
+				int[] grownStarts = new int[count * 2];
+				int[] grownEnds = new int[count * 2];
+				System.arraycopy(starts, 0, grownStarts, 0, count);
+				System.arraycopy(ends, 0, grownEnds, 0, count);
+				starts = grownStarts;
+				ends = grownEnds;
+			}
+			starts[count] = start;
+			ends[count] = i;
+			count++;
+		}
+	}
+
+	/**
+	 * @return The command as typed
+	 */
+	String text() {
+		return text;
+	}
+
+	/**
+	 * @return The number of words after the command name
+	 */
+	int arguments() {
+		return Math.max(0, count - 1);
+	}
+
+	/**
+	 * @param i The word to copy, 0 being the command name
+	 * @return The word
+	 */
+	String get(int i) {
+		return text.substring(starts[i], ends[i]);
+	}
+
+	/**
+	 * @param i The first word wanted
+	 * @return Everything from word i to the last word, with the spacing between words kept as typed
+	 */
+	String rest(int i) {
+		return text.substring(starts[i], ends[count - 1]);
+	}
+
+	/**
+	 * @return The command name without its leading '/', or an empty string for a bare "/"
+	 */
+	String name() {
+		return count == 0 ? "" : text.substring(starts[0] + 1, ends[0]);
+	}
+
+	/**
+	 * @param i The word to compare
+	 * @param word The text to compare it with
+	 * @return True if word i is exactly the text
+	 */
+	boolean matches(int i, String word) {
+		return i < count && ends[i] - starts[i] == word.length() && text.regionMatches(starts[i], word, 0, word.length());
+	}
+
+	/**
+	 * @param i The word to hash
+	 * @return The same hash as get(i).hashCode(), without copying the word
+	 */
+	int hash(int i) {
+		int hash = 0;
+		for (int c = starts[i]; c < ends[i]; c++)
+			hash = 31 * hash + text.charAt(c);
+		return hash;
+	}
+
+	/**
+	 * @return True if there are no words, which a command never is
+	 */
+	boolean isEmpty() {
+		return count == 0;
+	}
+}
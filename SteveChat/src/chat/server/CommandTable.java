@@ -0,0 +1,93 @@
+package chat.server;
+
+import java.io.IOException;
+
+/**
+ * The commands the server understands, looked up by name. Lookups hash the name straight out of the CommandLine
+ * into an open addressed table, so finding a command copies no strings. Commands are registered once up front,
+ * after which the table is only read and can be shared by every session.
+ */
+class CommandTable {
+	//Power of two and at least twice the number of commands, so probe chains stay short
+	private Command[] slots = new Command[32];
+	private int size = 0;
+	private StringBuilder listing = new StringBuilder();
+
+	/**
+	 * Adds a command. Commands with a description are listed by "/cmdlist" in the order they were registered
+	 * @param command The command to add
+	 */
+	void register(Command command) {
+		if ((size + 1) * 2 > slots.length)
+		{
+			Command[] old = slots;
+			slots = new Command[old.length * 2];
+			for (Command c: old)
+				if (c != null)
+					slots[free(c.getName())] = c;
+		}
+		slots[free(command.getName())] = command;
+		size++;
+
+		if (command.getDescription() != null)
+		{
+			if (listing.length() > 0)
+				listing.append('\n');
+			listing.append(' ').append(command.getUsage()).append(" - ").append(command.getDescription());
+		}
+	}
+
+	/**
+	 * Runs a command for a session
+	 * @param session The session that sent it
+	 * @param line The command split into words
+	 * @param command The command named by the line, as returned by find(line)
+	 * @throws UnknownCommandException If there is no such command or it is missing arguments
+	 * @throws IOException If the command fails
+	 */
+	void dispatch(ClientSession session, CommandLine line, Command command) throws IOException, UnknownCommandException {
+		if (command == null)
+			throw new UnknownCommandException("Unrecognised command \"" + line.text().substring(1) + "\"");
+		if (line.arguments() < command.getMinArguments())
+			throw new UnknownCommandException("Missing paramater for command " + line.name()
+					+ ", usage: " + command.getUsage());
+		command.run(session, line);
+	}
+
+	/**
+	 * @param line A parsed command
+	 * @return The command named by its first word, or null if there isn't one
+	 */
+	Command find(CommandLine line) {
+		if (line.isEmpty())
+			return null;
+		int mask = slots.length - 1;
+		for (int i = spread(line.hash(0)) & mask; slots[i] != null; i = (i + 1) & mask)
+			if (line.matches(0, slots[i].getName()))
+				return slots[i];
+		return null;
+	}
+
+	/**
+	 * @return One line per listed command giving its usage and description
+	 */
+	String listing() {
+		return listing.toString();
+	}
+
+	private int free(String name) {
+		int mask = slots.length - 1;
+		int i = spread(name.hashCode()) & mask;
+		while (slots[i] != null)
+		{
+			if (slots[i].getName().equals(name))
+				throw new IllegalArgumentException("Command " + name + " registered twice");
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,179 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single selector thread that owns a share of the server's connections. Everything that happens to one of
+ * its connections (reading, decoding, command handling and writing) runs on this thread; other threads only
+ * hand it new channels and ask it to flush output they queued.
+ */
+class EventLoop extends Thread {
+	private ChatRelayServer server;
+	private Selector selector;
+
+	//Work handed over by other threads, picked up the next time the selector wakes
+	private ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private ConcurrentLinkedQueue<NioConnection> pendingFlush = new ConcurrentLinkedQueue<NioConnection>();
+	private AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+	//Shared by every connection on this loop, reads are handed straight to the connection's decoder
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+	/**
+	 * @param server The server whose users and logs the connections work with
+	 * @param index Used to name the thread
+	 * @throws IOException If the selector could not be opened
+	 */
+	EventLoop(ChatRelayServer server, int index) throws IOException {
+		super("EventLoop-" + index);
+		this.server = server;
+		selector = Selector.open();
+		setDaemon(true);
+	}
+
+	/**
+	 * Hands a newly accepted, non-blocking channel to this loop. Safe to call from any thread
+	 * @param channel The client channel
+	 */
+	void register(SocketChannel channel) {
+		newChannels.add(channel);
+		wakeup();
+	}
+
+	/**
+	 * Asks the loop to write whatever the connection has queued. Safe to call from any thread
+	 * @param connection A connection owned by this loop
+	 */
+	void requestFlush(NioConnection connection) {
+		pendingFlush.add(connection);
+		if (Thread.currentThread() != this)
+			wakeup();
+	}
+
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	public void run() {
+		while (selector.isOpen())
+		{
+			try {
+				selector.select();
+				wakeupPending.set(false);
+
+				registerNewChannels();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection)key.attachment();
+					if (!key.isValid())
+						continue;
+					if (key.isReadable())
+					{
+						read(connection);
+						//send what the messages just read produced before reading more, so queues stay short
+						flushPending();
+					}
+					if (key.isValid() && key.isWritable())
+						flush(connection);
+				}
+
+				flushPending();
+			} catch (IOException e) {
+				server.debug("Event loop " + getName() + " failed: " + e.getMessage());
+			} catch (RuntimeException e) {
+				//keep serving the loop's other clients
+				server.debug("Event loop " + getName() + " error: " + e);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void flushPending() {
+		NioConnection connection;
+		while ((connection = pendingFlush.poll()) != null)
+			flush(connection);
+	}
+
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null)
+		{
+			try {
+				NioConnection connection = new NioConnection(server, this, channel);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (ClosedChannelException e) {
+				//client gave up before we got to it
+			}
+		}
+	}
+
+	/**
+	 * Reads up to one buffer full and hands complete messages to the client's session. Anything left is picked
+	 * up on the next pass, so one busy client can't keep the loop from the others
+	 */
+	private void read(NioConnection connection) {
+		try {
+			readBuffer.clear();
+			int count = connection.channel.read(readBuffer);
+			if (count > 0)
+			{
+				readBuffer.flip();
+				connection.received(readBuffer);
+			}
+
+			if (count < 0)
+				connection.lost();
+		} catch (IOException e) {
+			//client disconnected
+			connection.lost();
+		} catch (RuntimeException e) {
+			//a fault handling one client must not take down every other client on this loop
+			server.debug("Dropping client after error: " + e);
+			e.printStackTrace();
+			connection.lost();
+		}
+	}
+
+	/**
+	 * Writes as much queued output as the socket will take, waiting for OP_WRITE if it fills up
+	 */
+	private void flush(NioConnection connection) {
+		SelectionKey key = connection.key;
+		if (key == null || !key.isValid())
+			return;
+		if (connection.overflowed)
+		{
+			server.debug("Dropping client " + connection.channel.socket().getInetAddress() + ", it is not reading its messages");
+			connection.lost();
+			return;
+		}
+		try {
+			if (connection.flush())
+			{
+				if (connection.closeRequested)
+				{
+					connection.close();
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			else
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			connection.lost();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import chat.Frame;
+
+/**
+ * The Writer behind the PrintWriter of a client that speaks the binary protocol. Text is collected until the
+ * PrintWriter flushes, then every non-empty line is sent as its own frame, which is what an old client would
+ * have seen as separate lines. Lines written here are for this client only, so their frames carry sequence 0.
+ */
+class FrameWriter extends Writer {
+	private OutputStream out;
+	private StringBuilder text = new StringBuilder();
+
+	/**
+	 * @param out The stream frames are written to
+	 */
+	FrameWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		text.append(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		text.append(str, off, off + len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		int start = 0;
+		int newline;
+		while ((newline = text.indexOf("\n", start)) >= 0)
+		{
+			int end = newline;
+			if (end > start && text.charAt(end - 1) == '\r')
+				end--;
+			if (end > start)
+			{
+				String line = text.substring(start, end);
+				byte type = line.charAt(0) == '/' ? Frame.TYPE_DIRECTIVE : Frame.TYPE_TEXT;
+				out.write(Frame.encode(type, 0, 0, line));
+			}
+			start = newline + 1;
+		}
+		//keep anything after the last line break until the line is finished
+		text.delete(0, start);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+}
@@ -0,0 +1,58 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+import chat.MessageHandler;
+
+/**
+ * Reads the MessageHandler objects old clients send. Any other class in the stream is refused before it is loaded,
+ * so a peer can't make the server deserialize whatever it likes. A MessageHandler holds nothing but strings, which
+ * like primitives are read without looking up a class.
+ */
+class MessageInputStream extends ObjectInputStream {
+	/**
+	 * @param in The stream, starting with the object stream header
+	 * @throws IOException If the header could not be read
+	 */
+	MessageInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	/**
+	 * Reads the next message, refusing anything that isn't a MessageHandler with some text in it
+	 * @return The message
+	 * @throws IOException If the stream failed, or the client sent something other than a chat message
+	 */
+	MessageHandler readMessage() throws IOException {
+		Object message;
+		try {
+			message = readObject();
+		} catch (ClassNotFoundException e) {
+			throw new InvalidClassException(e.getMessage(), "Clients may only send chat messages");
+		}
+		if (!(message instanceof MessageHandler))
+			throw new InvalidObjectException("Clients may only send chat messages, not " + message);
+		String text = ((MessageHandler)message).getMessage();
+		if (text == null || text.length() == 0)
+			throw new InvalidObjectException("Client sent a message with no text");
+		return (MessageHandler)message;
+	}
+
+	@Override
+	protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+		String name = description.getName();
+		if (!name.equals(MessageHandler.class.getName()) && !name.equals(String.class.getName()))
+			throw new InvalidClassException(name, "Clients may only send chat messages");
+		return super.resolveClass(description);
+	}
+
+	@Override
+	protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+		throw new InvalidClassException("Proxy", "Clients may only send chat messages");
+	}
+}
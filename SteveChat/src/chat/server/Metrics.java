@@ -0,0 +1,293 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.LatencyHistogram;
+
+/**
+ * The server's statistics: what flows through it, how its connections end and how long lines take to get through,
+ * shown to operators by "/stats" and over JMX. Everything counted for each message goes to a StripedCounter or a
+ * striped histogram, so recording never takes a lock and threads rarely touch the same cache line. Gauges such as
+ * the number of users are worked out from the server's own state when read, costing nothing in between.
+ */
+class Metrics implements MetricsMBean {
+	//Ways a connection or session ends: the client sent "/disconnect", it was dropped for not reading its output,
+	//it went away and was not held, it went away and was held to be resumed, it was held and not resumed in time,
+	//or it was closed because a new connection resumed its session
+	static final String QUIT = "quit";
+	static final String SLOW = "slow";
+	static final String LOST = "lost";
+	static final String HELD = "held";
+	static final String EXPIRED = "expired";
+	static final String REPLACED = "replaced";
+
+	//What commands that don't exist are counted as
+	private static final String UNKNOWN = "unknown";
+
+	private ChatRelayServer server;
+
+	final StripedCounter messagesIn = new StripedCounter();
+	final StripedCounter messagesOut = new StripedCounter();
+	final StripedCounter bytesIn = new StripedCounter();
+	final StripedCounter bytesOut = new StripedCounter();
+	final StripedCounter errors = new StripedCounter();
+	final StripedCounter chatLogDropped = new StripedCounter();
+
+	//Connections whose session is live, up when a session starts and down when it stops being live
+	final AtomicInteger connections = new AtomicInteger();
+
+	//Runs of each command by name. Only the names of registered commands are added, so clients can't grow it
+	private ConcurrentMap<String, StripedCounter> commands = new ConcurrentHashMap<String, StripedCounter>();
+
+	//Endings by reason, all added up front and rare enough for a plain atomic each
+	private Map<String, AtomicLong> disconnects = new LinkedHashMap<String, AtomicLong>();
+
+	//From a chat line reaching its session to it being queued for every member of the room, and from a broadcast
+	//being encoded to the last of its bytes being handed to a member's socket
+	final Latency receiveToBroadcast = new Latency();
+	final Latency broadcastToWrite = new Latency();
+
+	/**
+	 * @param server The server whose state the gauges read
+	 */
+	Metrics(ChatRelayServer server) {
+		this.server = server;
+		for (String reason: new String[] {QUIT, SLOW, LOST, HELD, EXPIRED, REPLACED})
+			disconnects.put(reason, new AtomicLong());
+	}
+
+	/**
+	 * Counts a command a client sent
+	 * @param command The command, or null if there is no such command
+	 */
+	void command(Command command) {
+		String name = command == null ? UNKNOWN : command.getName();
+		StripedCounter count = commands.get(name);
+		if (count == null)
+		{
+			StripedCounter created = new StripedCounter();
+			count = commands.putIfAbsent(name, created);
+			if (count == null)
+				count = created;
+		}
+		count.increment();
+	}
+
+	/**
+	 * Counts a connection or session ending
+	 * @param reason One of the reasons above
+	 */
+	void disconnected(String reason) {
+		disconnects.get(reason).incrementAndGet();
+	}
+
+	/**
+	 * Counts a buffer a connection has finished writing, and how long it took to get there if it was a broadcast
+	 * @param buffer The buffer written
+	 */
+	void wrote(SharedBuffer buffer) {
+		messagesOut.increment();
+		bytesOut.add(buffer.length());
+		long broadcastAt = buffer.broadcastAt();
+		if (broadcastAt != 0)
+			broadcastToWrite.record((System.nanoTime() - broadcastAt) / 1000);
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	public int getUsers() {
+		return server.registry.size();
+	}
+
+	public int getRooms() {
+		return server.roomCount();
+	}
+
+	public int getLobbyRosterSize() {
+		return server.lobby.rosterSize();
+	}
+
+	public long getQueuedOutput() {
+		long queued = 0;
+		for (ClientSession session: server.registry.sessions())
+			queued += session.queued();
+		return queued;
+	}
+
+	public int getLongestQueue() {
+		int longest = 0;
+		for (ClientSession session: server.registry.sessions())
+			longest = Math.max(longest, session.queued());
+		return longest;
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getChatLogDropped() {
+		return chatLogDropped.sum();
+	}
+
+	public String[] getCommandCounts() {
+		List<String> counts = new ArrayList<String>();
+		for (Map.Entry<String, StripedCounter> command: new TreeMap<String, StripedCounter>(commands).entrySet())
+			counts.add(command.getKey() + " " + command.getValue().sum());
+		return counts.toArray(new String[counts.size()]);
+	}
+
+	public String[] getDisconnectCounts() {
+		List<String> counts = new ArrayList<String>();
+		for (Map.Entry<String, AtomicLong> reason: disconnects.entrySet())
+			counts.add(reason.getKey() + " " + reason.getValue().get());
+		return counts.toArray(new String[counts.size()]);
+	}
+
+	public long getReceiveToBroadcastCount() {
+		return receiveToBroadcast.snapshot().count();
+	}
+
+	public long getReceiveToBroadcastMedianMicros() {
+		return receiveToBroadcast.snapshot().valueAt(50);
+	}
+
+	public long getReceiveToBroadcast99thMicros() {
+		return receiveToBroadcast.snapshot().valueAt(99);
+	}
+
+	public long getReceiveToBroadcast999thMicros() {
+		return receiveToBroadcast.snapshot().valueAt(99.9);
+	}
+
+	public long getReceiveToBroadcastMaxMicros() {
+		return receiveToBroadcast.snapshot().max();
+	}
+
+	public long getBroadcastToWriteCount() {
+		return broadcastToWrite.snapshot().count();
+	}
+
+	public long getBroadcastToWriteMedianMicros() {
+		return broadcastToWrite.snapshot().valueAt(50);
+	}
+
+	public long getBroadcastToWrite99thMicros() {
+		return broadcastToWrite.snapshot().valueAt(99);
+	}
+
+	public long getBroadcastToWrite999thMicros() {
+		return broadcastToWrite.snapshot().valueAt(99.9);
+	}
+
+	public long getBroadcastToWriteMaxMicros() {
+		return broadcastToWrite.snapshot().max();
+	}
+
+	public String[] report() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("Connections " + getConnections() + ", users " + getUsers() + ", rooms " + getRooms()
+				+ ", lobby user list " + getLobbyRosterSize() + ", queued output " + getQueuedOutput()
+				+ " (longest queue " + getLongestQueue() + ")");
+		lines.add("Messages in " + getMessagesIn() + " (" + getBytesIn() + " bytes), out " + getMessagesOut()
+				+ " (" + getBytesOut() + " bytes), errors " + getErrors() + ", chat log lines dropped "
+				+ getChatLogDropped());
+		lines.add("Commands: " + join(getCommandCounts()));
+		lines.add("Disconnects: " + join(getDisconnectCounts()));
+		lines.add("Receive to broadcast: " + describe(receiveToBroadcast.snapshot()));
+		lines.add("Broadcast to write: " + describe(broadcastToWrite.snapshot()));
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public String[] connectionStats() {
+		List<String> lines = new ArrayList<String>();
+		for (ClientSession session: server.registry.sessions())
+			lines.add(session.stats());
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public void resetLatencies() {
+		receiveToBroadcast.clear();
+		broadcastToWrite.clear();
+	}
+
+	//"a 1, b 2" for "a 1" and "b 2", or "none"
+	private static String join(String[] counts) {
+		if (counts.length == 0)
+			return "none";
+		StringBuilder joined = new StringBuilder();
+		for (String count: counts)
+		{
+			if (joined.length() > 0)
+				joined.append(", ");
+			joined.append(count);
+		}
+		return joined.toString();
+	}
+
+	private static String describe(LatencyHistogram latencies) {
+		return latencies.count() + " recorded, median " + latencies.valueAt(50) + "us, 99th " + latencies.valueAt(99)
+				+ "us, 99.9th " + latencies.valueAt(99.9) + "us, max " + latencies.max() + "us";
+	}
+
+	//==============================================================================================================
+	/**
+	 * A latency histogram split into a few, each thread recording into the one its id hashes to, so busy event
+	 * loops don't all increment the same buckets. Reading adds them together
+	 */
+	static final class Latency {
+		private final LatencyHistogram[] stripes = new LatencyHistogram[Math.min(StripedCounter.STRIPES, 8)];
+
+		Latency() {
+			for (int i = 0; i < stripes.length; i++)
+				stripes[i] = new LatencyHistogram();
+		}
+
+		/**
+		 * @param micros The latency, in microseconds
+		 */
+		void record(long micros) {
+			stripes[StripedCounter.stripe() & (stripes.length - 1)].record(micros);
+		}
+
+		/**
+		 * @return Everything recorded so far, in one histogram of its own
+		 */
+		LatencyHistogram snapshot() {
+			LatencyHistogram all = new LatencyHistogram();
+			for (LatencyHistogram stripe: stripes)
+				all.add(stripe);
+			return all;
+		}
+
+		void clear() {
+			for (LatencyHistogram stripe: stripes)
+				stripe.clear();
+		}
+	}
+}
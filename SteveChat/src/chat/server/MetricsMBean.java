@@ -0,0 +1,120 @@
+package chat.server;
+
+/**
+ * What a relay server exposes over JMX, as chat.server:type=Relay,port=PORT. Counts run from when the server
+ * started, latencies are in microseconds and cover everything recorded since they were last reset.
+ */
+public interface MetricsMBean {
+	/**
+	 * @return Client connections whose session is live
+	 */
+	int getConnections();
+
+	/**
+	 * @return Users with a name on this server, including those held for their client to resume
+	 */
+	int getUsers();
+
+	/**
+	 * @return Rooms with a member on this server or another node
+	 */
+	int getRooms();
+
+	/**
+	 * @return Names on the lobby's user list, users of other nodes included
+	 */
+	int getLobbyRosterSize();
+
+	/**
+	 * @return Buffers waiting in every user's outbound queue
+	 */
+	long getQueuedOutput();
+
+	/**
+	 * @return Buffers waiting in the longest outbound queue
+	 */
+	int getLongestQueue();
+
+	/**
+	 * @return Messages received from clients, chat lines and commands
+	 */
+	long getMessagesIn();
+
+	/**
+	 * @return Buffers written to clients, each a line or a batch of lines queued together
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return Bytes read from clients' connections
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return Bytes written to clients' connections
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return Commands that were unknown or could not be carried out
+	 */
+	long getErrors();
+
+	/**
+	 * @return Lines left out of the chat log because the disk had fallen behind
+	 */
+	long getChatLogDropped();
+
+	/**
+	 * @return "COMMAND COUNT" for each command clients have sent, "unknown" counting those that don't exist
+	 */
+	String[] getCommandCounts();
+
+	/**
+	 * @return "REASON COUNT" for each way a connection or session has ended
+	 */
+	String[] getDisconnectCounts();
+
+	/**
+	 * @return Chat lines timed from reaching their session to being queued for their room, the latencies of which
+	 * the next four give
+	 */
+	long getReceiveToBroadcastCount();
+
+	long getReceiveToBroadcastMedianMicros();
+
+	long getReceiveToBroadcast99thMicros();
+
+	long getReceiveToBroadcast999thMicros();
+
+	long getReceiveToBroadcastMaxMicros();
+
+	/**
+	 * @return Broadcasts timed from being encoded to being written to a member's connection, once per member, the
+	 * latencies of which the next four give
+	 */
+	long getBroadcastToWriteCount();
+
+	long getBroadcastToWriteMedianMicros();
+
+	long getBroadcastToWrite99thMicros();
+
+	long getBroadcastToWrite999thMicros();
+
+	long getBroadcastToWriteMaxMicros();
+
+	/**
+	 * @return Everything "/stats" shows, one line per element
+	 */
+	String[] report();
+
+	/**
+	 * @return One line of traffic counts per connection
+	 */
+	String[] connectionStats();
+
+	/**
+	 * Forgets the latencies recorded so far, so the next readings only cover what happens from now on
+	 */
+	void resetLatencies();
+}
@@ -0,0 +1,260 @@
+package chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import chat.Frame;
+import chat.MessageHandler;
+
+/**
+ * One client connection on an EventLoop. Incoming bytes are buffered until a whole frame or MessageHandler has
+ * arrived, outgoing text waits in the connection's OutboundQueue until the socket can take it.
+ * The session is only created once the first bytes show which protocol the client speaks.
+ */
+class NioConnection {
+	//Largest amount of undecoded input a client may leave buffered before it is dropped
+	private static final int MAX_PENDING_INPUT = Frame.MAX_PAYLOAD + 32 * 1024;
+
+	//Stream header written once by the client's ObjectOutputStream, replayed for every decode attempt
+	private static final byte[] STREAM_HEADER = {(byte)0xAC, (byte)0xED, 0x00, 0x05};
+
+	//Clients read text in the platform charset, same as a PrintWriter on a socket stream
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	//Most queued buffers handed to the socket in one gathering write
+	private static final int MAX_GATHER = 64;
+
+	final SocketChannel channel;
+	SelectionKey key;
+	ClientSession session;
+	volatile boolean closeRequested = false;
+	volatile boolean overflowed = false;
+
+	private EventLoop loop;
+	private OutboundQueue outbound;
+	//Buffers taken off the queue that the socket hasn't fully accepted yet, oldest first
+	private SharedBuffer[] gathered = new SharedBuffer[MAX_GATHER];
+	private ByteBuffer[] writing = new ByteBuffer[MAX_GATHER];
+	private int gatheredCount = 0;
+	private ChatRelayServer server;
+	private byte[] inbound = new byte[1024];
+	private int inboundLength = 0;
+	private boolean binaryProtocol = false;
+
+	/**
+	 * @param server The server the client connected to
+	 * @param loop The loop that owns this connection
+	 * @param channel The non-blocking client channel
+	 */
+	NioConnection(ChatRelayServer server, EventLoop loop, SocketChannel channel) {
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		outbound = new OutboundQueue(server.outboundCapacity, server.overflowPolicy, server.overflowTimeout){
+			@Override
+			protected void queued() {
+				NioConnection.this.loop.requestFlush(NioConnection.this);
+			}
+
+			@Override
+			protected void overflowed() {
+				//the loop drops the client the next time it tries to flush
+				overflowed = true;
+				NioConnection.this.loop.requestFlush(NioConnection.this);
+			}
+		};
+	}
+
+	/**
+	 * Works out the client's protocol from its first bytes, answers a binary hello and creates the session
+	 * @return False if more bytes are needed to decide
+	 */
+	private boolean startSession() throws IOException {
+		if (inboundLength < STREAM_HEADER.length)
+			return false;
+
+		PrintWriter output;
+		int connectionId = server.nextConnectionId();
+		if (Frame.isHello(inbound, 0))
+		{
+			if (inboundLength < Frame.CLIENT_HELLO_SIZE)
+				return false;
+			outbound.write(Frame.serverHello(inbound[Frame.MAGIC.length], connectionId));
+			outbound.flush();
+			consume(Frame.CLIENT_HELLO_SIZE);
+			binaryProtocol = true;
+			output = new PrintWriter(new FrameWriter(outbound), true);
+		}
+		else
+		{
+			for (int i = 0; i < STREAM_HEADER.length; i++)
+			{
+				if (inbound[i] != STREAM_HEADER[i])
+					throw new IOException("Client did not open an object stream");
+			}
+			consume(STREAM_HEADER.length);
+			output = new PrintWriter(new OutputStreamWriter(outbound, CHARSET), true);
+		}
+
+		session = new ClientSession(server, connectionId, channel.socket().getInetAddress(), output, outbound, binaryProtocol){
+			@Override
+			protected void closeTransport() {
+				closeRequested = true;
+				loop.requestFlush(NioConnection.this);
+			}
+		};
+		return true;
+	}
+
+	/**
+	 * Appends freshly read bytes and passes every complete message to the session
+	 * @param data Bytes read from the channel
+	 * @throws IOException If the client sent something that is not a message stream
+	 */
+	void received(ByteBuffer data) throws IOException {
+		int needed = inboundLength + data.remaining();
+		if (needed > MAX_PENDING_INPUT)
+			throw new IOException("Client sent an oversized message");
+		if (needed > inbound.length)
+		{
+			byte[] larger = new byte[Math.max(needed, inbound.length * 2)];
+			System.arraycopy(inbound, 0, larger, 0, inboundLength);
+			inbound = larger;
+		}
+		int count = data.remaining();
+		data.get(inbound, inboundLength, count);
+		inboundLength = needed;
+
+		if (session == null && !startSession())
+			return;
+		session.bytesRead(count);
+
+		MessageHandler message;
+		while (!closeRequested && (message = binaryProtocol ? decodeFrame() : decode()) != null)
+			session.handleMessage(message);
+	}
+
+	/**
+	 * Takes the next typed message out of the buffered frames, skipping any other frame type
+	 * @return The next message, or null if it has not fully arrived yet
+	 */
+	private MessageHandler decodeFrame() throws IOException {
+		ByteBuffer pending = ByteBuffer.wrap(inbound, 0, inboundLength);
+		Frame frame;
+		while ((frame = Frame.decode(pending)) != null)
+		{
+			if (frame.getType() == Frame.TYPE_MESSAGE && frame.getPayload().length() > 0)
+				break;
+		}
+		consume(pending.position());
+		return frame == null ? null : frame.toMessageHandler();
+	}
+
+	/**
+	 * Tries to read one object from an old client's buffered input. The client resets its stream after every message, so each
+	 * one carries its own class descriptors and can be read by a fresh ObjectInputStream
+	 * @return The next message, or null if it has not fully arrived yet
+	 */
+	private MessageHandler decode() throws IOException {
+		if (inboundLength == 0)
+			return null;
+		ByteArrayInputStream pending = new ByteArrayInputStream(inbound, 0, inboundLength);
+		try {
+			MessageInputStream in = new MessageInputStream(new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), pending));
+			MessageHandler message = in.readMessage();
+			consume(inboundLength - pending.available());
+			return message;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private void consume(int count) {
+		System.arraycopy(inbound, count, inbound, 0, inboundLength - count);
+		inboundLength -= count;
+	}
+
+	/**
+	 * Writes queued output until the queue is empty or the socket buffer is full. Up to MAX_GATHER queued buffers
+	 * go to the socket in each gathering write, straight from the buffers shared with other clients. Only called
+	 * by the owning loop
+	 * @return True if everything queued was written
+	 * @throws IOException If the write failed
+	 */
+	boolean flush() throws IOException {
+		while (true)
+		{
+			SharedBuffer next;
+			while (gatheredCount < MAX_GATHER && (next = outbound.poll()) != null)
+			{
+				gathered[gatheredCount] = next;
+				writing[gatheredCount] = next.asByteBuffer();
+				gatheredCount++;
+			}
+			if (gatheredCount == 0)
+				return true;
+
+			channel.write(writing, 0, gatheredCount);
+
+			int written = 0;
+			while (written < gatheredCount && !writing[written].hasRemaining())
+			{
+				if (session != null)
+					session.wrote(gathered[written]);
+				gathered[written++].release();
+			}
+			System.arraycopy(gathered, written, gathered, 0, gatheredCount - written);
+			System.arraycopy(writing, written, writing, 0, gatheredCount - written);
+			for (int i = gatheredCount - written; i < gatheredCount; i++)
+			{
+				gathered[i] = null;
+				writing[i] = null;
+			}
+			gatheredCount -= written;
+			if (gatheredCount > 0)
+				return false;
+		}
+	}
+
+	/**
+	 * Cleans up after a client that went away or could not be read from
+	 */
+	void lost() {
+		if (session != null)
+		{
+			if (overflowed)
+				session.markSlow();
+			session.connectionLost();
+		}
+		close();
+	}
+
+	/**
+	 * Closes the channel and removes it from the loop's selector
+	 */
+	void close() {
+		outbound.abort();
+		for (int i = 0; i < gatheredCount; i++)
+		{
+			gathered[i].release();
+			gathered[i] = null;
+			writing[i] = null;
+		}
+		gatheredCount = 0;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
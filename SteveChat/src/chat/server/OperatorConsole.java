@@ -0,0 +1,65 @@
+package chat.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints the operator log to the console when the server runs headless. Lines are printed in batches from a
+ * thread of its own, so a slow terminal never holds up the threads doing the logging.
+ */
+class OperatorConsole implements Runnable {
+	//How often the log is checked for new lines, and the most printed per check
+	private static final long INTERVAL = 100;
+	private static final int BATCH = 512;
+
+	private OperatorLog log;
+	private PrintStream out;
+	private long position = 0;
+	private Thread thread;
+
+	/**
+	 * @param log The log to print
+	 * @param out Where to print it
+	 */
+	OperatorConsole(OperatorLog log, PrintStream out) {
+		this.log = log;
+		this.out = out;
+	}
+
+	/**
+	 * Starts printing in the background
+	 */
+	void start() {
+		thread = new Thread(this, "OperatorConsole");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		try {
+			while (true)
+			{
+				printPending();
+				Thread.sleep(INTERVAL);
+			}
+		} catch (InterruptedException e) {
+			//server is shutting down
+		}
+	}
+
+	/**
+	 * Prints whatever has been logged and not printed yet. Also used to catch up when the server shuts down
+	 */
+	synchronized void printPending() {
+		List<String> lines = new ArrayList<String>();
+		do
+		{
+			lines.clear();
+			position = log.read(position, BATCH, lines);
+			for (String line: lines)
+				out.println(line);
+		} while (lines.size() == BATCH);
+		out.flush();
+	}
+}
@@ -0,0 +1,79 @@
+package chat.server;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The server's operator messages (who connected, who was dropped, errors) kept in a fixed size ring. Logging
+ * claims the next slot with one atomic increment and never waits, for a lock or for whoever displays the log, so
+ * any client thread or event loop can log. Viewers read the lines after the last one they saw in batches, at their
+ * own pace; one that falls a whole ring behind is told how many lines it missed.
+ */
+class OperatorLog {
+	private final AtomicReferenceArray<Line> slots;
+	private final AtomicLong next = new AtomicLong(0);
+
+	/**
+	 * @param capacity The most lines kept
+	 */
+	OperatorLog(int capacity) {
+		slots = new AtomicReferenceArray<Line>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Adds a line, overwriting the oldest if the ring is full
+	 * @param m The message
+	 */
+	void log(String m) {
+		long sequence = next.getAndIncrement();
+		slots.set((int)(sequence % slots.length()), new Line(sequence, "[" + CoarseClock.minute() + "] " + m));
+	}
+
+	/**
+	 * Reads the lines logged since a viewer last read
+	 * @param from The number returned by the viewer's last read, 0 the first time
+	 * @param max The most lines to read
+	 * @param lines Where to put them, oldest first
+	 * @return The number to pass to the next read
+	 */
+	long read(long from, int max, List<String> lines) {
+		long end = next.get();
+		long oldest = Math.max(0, end - slots.length());
+		if (from < oldest)
+		{
+			lines.add("... " + (oldest - from) + " operator log lines dropped");
+			from = oldest;
+		}
+
+		long sequence = from;
+		int count = 0;
+		while (sequence < end && count < max)
+		{
+			Line line = slots.get((int)(sequence % slots.length()));
+			//a line is only half logged until its slot has been written, stop there and pick it up next time
+			if (line == null || line.sequence < sequence)
+				break;
+			//overwritten since end was read, the viewer is behind again
+			if (line.sequence > sequence)
+			{
+				sequence++;
+				continue;
+			}
+			lines.add(line.text);
+			sequence++;
+			count++;
+		}
+		return sequence;
+	}
+
+	private static final class Line {
+		final long sequence;
+		final String text;
+
+		Line(long sequence, String text) {
+			this.sequence = sequence;
+			this.text = text;
+		}
+	}
+}
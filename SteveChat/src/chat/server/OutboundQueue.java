@@ -0,0 +1,275 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue of output waiting to be written to one client. It is the OutputStream a client's writers
+ * write to: everything written between two flushes becomes one entry, and whoever owns the connection drains the
+ * entries to the socket. Broadcasts skip the writers and queue one SharedBuffer for every client through send().
+ * Sending to a client therefore never waits on that client's socket, and what happens when a client falls too far
+ * behind is decided by the overflow policy.
+ *
+ * The queue holds a reference to every buffer in it and releases the ones it throws away. Whoever takes a buffer
+ * out with poll() or take() gets that reference and must release it once the bytes are written.
+ */
+abstract class OutboundQueue extends OutputStream {
+
+	/**
+	 * What to do with output for a client whose queue is full
+	 */
+	enum OverflowPolicy {
+		DROP_OLDEST, //throw away the oldest queued output to make room
+		DISCONNECT, //drop the client
+		BLOCK //the client's own handler waits for room, dropping the client if none frees up in time. Not for -nio
+	}
+
+	//Set while a thread holds a lock other clients need, such as a room's, so it must not wait for any one client
+	private static final ThreadLocal<Boolean> WAITING_FORBIDDEN = new ThreadLocal<Boolean>();
+
+	private ArrayDeque<SharedBuffer> entries = new ArrayDeque<SharedBuffer>();
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+	private Condition notFull = lock.newCondition();
+	private boolean finished = false;
+
+	private int capacity;
+	private OverflowPolicy policy;
+	private long blockTimeout;
+	//The only thread the BLOCK policy lets wait, the handler reading the client's own messages
+	private volatile Thread owner = null;
+
+	//Output written since the last flush
+	private PendingOutput pending = new PendingOutput();
+
+	/**
+	 * @param capacity The most entries that may wait for the client
+	 * @param policy What to do when the queue is full
+	 * @param blockTimeout How long the BLOCK policy waits for room, in milliseconds
+	 */
+	OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeout) {
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.blockTimeout = blockTimeout;
+	}
+
+	/**
+	 * Lets a thread wait for room under the BLOCK policy when it writes to this client. Anybody else finding the queue
+	 * full drops the client, so a broadcast or another client's message never waits for a slow reader
+	 * @param thread The client's handler thread
+	 */
+	void setOwner(Thread thread) {
+		owner = thread;
+	}
+
+	/**
+	 * Stops the calling thread waiting for room in any queue, or lets it again. Set while holding a lock other clients
+	 * need
+	 * @param forbidden True to stop it waiting
+	 */
+	static void forbidWaiting(boolean forbidden) {
+		if (forbidden)
+			WAITING_FORBIDDEN.set(Boolean.TRUE);
+		else
+			WAITING_FORBIDDEN.remove();
+	}
+
+	/**
+	 * Called after an entry has been queued
+	 */
+	protected void queued() {
+	}
+
+	/**
+	 * Called when the overflow policy decides the client must be dropped. Nothing more is queued after this
+	 */
+	protected abstract void overflowed();
+
+	@Override
+	public void write(int b) {
+		pending.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		pending.write(b, off, len);
+	}
+
+	/**
+	 * Queues everything written since the last flush as a single entry
+	 */
+	@Override
+	public void flush() {
+		if (pending.size() == 0)
+			return;
+		SharedBuffer buffer = pending.drain();
+		queue(buffer, true);
+		buffer.release();
+	}
+
+	/**
+	 * Queues a broadcast, taking a reference to it. The caller keeps its own reference. Never waits for room, even
+	 * under the BLOCK policy
+	 * @param buffer Encoded output, which may be queued for other clients too
+	 */
+	void send(SharedBuffer buffer) {
+		queue(buffer, false);
+	}
+
+	/**
+	 * @param mayWait False if the BLOCK policy must drop the client rather than wait, whoever is sending
+	 */
+	private void queue(SharedBuffer buffer, boolean mayWait) {
+		if (offer(buffer, mayWait))
+			queued();
+		else
+		{
+			abort();
+			overflowed();
+		}
+	}
+
+	/**
+	 * Same as finish(), so closing a writer on top of the queue lets the queued output drain first
+	 */
+	@Override
+	public void close() {
+		flush();
+		finish();
+	}
+
+	/**
+	 * @return False if the client has to be dropped
+	 */
+	private boolean offer(SharedBuffer buffer, boolean mayWait) {
+		lock.lock();
+		try {
+			if (finished)
+				return true;
+			if (entries.size() >= capacity)
+			{
+				switch (policy)
+				{
+				case DROP_OLDEST:
+					entries.pollFirst().release();
+					break;
+				case DISCONNECT:
+					return false;
+				case BLOCK:
+					if (!mayWait || Thread.currentThread() != owner || WAITING_FORBIDDEN.get() != null)
+						return false;
+					long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+					while (entries.size() >= capacity && !finished)
+					{
+						if (remaining <= 0)
+							return false;
+						remaining = notFull.awaitNanos(remaining);
+					}
+					if (finished)
+						return true;
+					break;
+				}
+			}
+			entries.addLast(buffer.retain());
+			notEmpty.signal();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The oldest queued entry, or null if there is none
+	 */
+	SharedBuffer poll() {
+		lock.lock();
+		try {
+			SharedBuffer data = entries.pollFirst();
+			if (data != null)
+				notFull.signal();
+			return data;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for an entry
+	 * @return The oldest queued entry, or null once the queue has been finished and drained
+	 * @throws InterruptedException If the waiting thread was interrupted
+	 */
+	SharedBuffer take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (entries.isEmpty() && !finished)
+				notEmpty.await();
+			SharedBuffer data = entries.pollFirst();
+			if (data != null)
+				notFull.signal();
+			return data;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of entries waiting to be written
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting output. What is already queued can still be drained, after which take() returns null
+	 */
+	void finish() {
+		lock.lock();
+		try {
+			finished = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting output and throws away everything still queued
+	 */
+	void abort() {
+		lock.lock();
+		try {
+			SharedBuffer buffer;
+			while ((buffer = entries.pollFirst()) != null)
+				buffer.release();
+		} finally {
+			lock.unlock();
+		}
+		finish();
+	}
+
+	/**
+	 * Collects what the writers write between flushes, and copies it straight into a SharedBuffer
+	 */
+	private static class PendingOutput extends ByteArrayOutputStream {
+		SharedBuffer drain() {
+			SharedBuffer buffer = SharedBuffer.allocate(count);
+			System.arraycopy(buf, 0, buffer.array(), 0, count);
+			buffer.setLength(count);
+			reset();
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package chat.server;
+
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+/**
+ * The most recent broadcast lines, kept so that a client joining the chat can be shown what was said before it
+ * arrived, and a client resuming its session what it missed while it was away. Each line keeps the sequence number
+ * it was broadcast with. Lines are stored UTF-8 encoded, end to end in one byte array, with the oldest lines dropped
+ * once either the line or the byte limit is reached. The array starts small and doubles as lines are added, up to
+ * the byte limit, so a room nobody says much in costs little. Nothing is allocated per line beyond encoding it.
+ *
+ * Not thread safe, each room only touches its history while holding its lock.
+ */
+class RecentHistory {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	//Size of the byte array to begin with
+	private static final int INITIAL_BYTES = 4096;
+
+	//The encoded lines, wrapping round from the end of the array to the start, and the most it can grow to
+	private byte[] buffer;
+	private int maxBytes;
+	//Where each line starts in the buffer, how long it is and its broadcast sequence number, indexed by slot
+	private int[] offsets;
+	private int[] lengths;
+	private long[] sequences;
+	//Sequence number of the newest line dropped, or not kept at all
+	private long lastDropped = 0;
+
+	private int first = 0;
+	private int count = 0;
+	private int end = 0;
+	private int used = 0;
+
+	//Holds a line that wraps round the end of the buffer while it is decoded
+	private byte[] scratch;
+
+	/**
+	 * @param maxLines The most lines to keep, 0 keeps none
+	 * @param maxBytes The most encoded bytes to keep
+	 */
+	RecentHistory(int maxLines, int maxBytes) {
+		maxLines = Math.max(0, maxLines);
+		this.maxBytes = maxLines == 0 ? 0 : Math.max(0, maxBytes);
+		buffer = new byte[Math.min(INITIAL_BYTES, this.maxBytes)];
+		scratch = new byte[buffer.length];
+		offsets = new int[maxLines];
+		lengths = new int[maxLines];
+		sequences = new long[maxLines];
+	}
+
+	/**
+	 * Keeps a line, dropping the oldest ones to make room. A line bigger than the whole buffer is not kept
+	 * @param sequence The sequence number the line was broadcast with
+	 * @param line The line as it was broadcast
+	 */
+	void add(long sequence, String line) {
+		if (offsets.length == 0)
+		{
+			lastDropped = sequence;
+			return;
+		}
+		byte[] bytes = line.getBytes(UTF8);
+		if (bytes.length > maxBytes)
+		{
+			lastDropped = sequence;
+			return;
+		}
+		if (used + bytes.length > buffer.length && buffer.length < maxBytes)
+			grow(used + bytes.length);
+
+		while (count == offsets.length || used + bytes.length > buffer.length)
+		{
+			lastDropped = sequences[first];
+			used -= lengths[first];
+			first = (first + 1) % offsets.length;
+			count--;
+		}
+
+		int slot = (first + count) % offsets.length;
+		offsets[slot] = end;
+		lengths[slot] = bytes.length;
+		sequences[slot] = sequence;
+		int part = Math.min(bytes.length, buffer.length - end);
+		System.arraycopy(bytes, 0, buffer, end, part);
+		System.arraycopy(bytes, part, buffer, 0, bytes.length - part);
+		end = buffer.length == 0 ? 0 : (end + bytes.length) % buffer.length;
+		used += bytes.length;
+		count++;
+	}
+
+	/**
+	 * Writes every kept line to a client, oldest first, as a single write
+	 * @param out The client's output
+	 */
+	void replay(PrintWriter out) {
+		replay(out, 0);
+	}
+
+	/**
+	 * Writes the kept lines broadcast after a sequence number to a client, oldest first, as a single write
+	 * @param out The client's output
+	 * @param after The sequence number of the last broadcast the client saw
+	 * @return False if some of the lines after it are no longer kept
+	 */
+	boolean replay(PrintWriter out, long after) {
+		int skip = 0;
+		while (skip < count && sequences[(first + skip) % offsets.length] <= after)
+			skip++;
+		if (skip < count)
+		{
+			StringBuilder lines = new StringBuilder(used + count * 2);
+			appendLines(lines, skip);
+			out.println(lines);
+			out.flush();
+		}
+		return lastDropped <= after;
+	}
+
+	//moves the kept lines, oldest first, to the start of a bigger array with room for at least needed bytes
+	private void grow(int needed) {
+		int size = buffer.length;
+		while (size < needed && size < maxBytes)
+			size = (int)Math.min((long)size * 2, maxBytes);
+		byte[] grown = new byte[size];
+		int offset = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int slot = (first + i) % offsets.length;
+			int part = Math.min(lengths[slot], buffer.length - offsets[slot]);
+			System.arraycopy(buffer, offsets[slot], grown, offset, part);
+			System.arraycopy(buffer, 0, grown, offset + part, lengths[slot] - part);
+			offsets[slot] = offset;
+			offset += lengths[slot];
+		}
+		buffer = grown;
+		scratch = new byte[size];
+		end = offset % size;
+	}
+
+	//decodes the kept lines from the skip'th on, separated by line breaks
+	private void appendLines(StringBuilder lines, int skip) {
+		for (int i = skip; i < count; i++)
+		{
+			int slot = (first + i) % offsets.length;
+			int offset = offsets[slot];
+			int length = lengths[slot];
+			if (offset + length <= buffer.length)
+				lines.append(new String(buffer, offset, length, UTF8));
+			else
+			{
+				int part = buffer.length - offset;
+				System.arraycopy(buffer, offset, scratch, 0, part);
+				System.arraycopy(buffer, 0, scratch, part, length - part);
+				lines.append(new String(scratch, 0, length, UTF8));
+			}
+			if (i < count - 1)
+				lines.append(LINE_SEPARATOR);
+		}
+	}
+
+	/**
+	 * @return The number of lines kept
+	 */
+	int size() {
+		return count;
+	}
+}
@@ -0,0 +1,93 @@
+package chat.server;
+
+import java.security.SecureRandom;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tokens that let a client pick up its session after its connection drops. Each client that joins is given a
+ * random token; if its connection is lost the session is held, nickname and all, for a grace period, and a new
+ * connection presenting the token within it takes the session over without anybody else seeing the client leave.
+ * A held session that nobody resumes leaves the chat when its grace period runs out.
+ *
+ * A token is used once: taking it over, expiring it and the client leaving on purpose all remove it atomically, so
+ * only one of them ever acts on a session.
+ */
+class ResumeTokens {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	//Ends held sessions whose grace period has run out
+	private static final Timer EXPIRY = new Timer("ResumeTokens", true);
+
+	private ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<String, ClientSession>();
+	private SecureRandom random = new SecureRandom();
+	private long graceMillis;
+
+	/**
+	 * @param graceMillis How long a dropped session is held for its client to come back, 0 to end it at once
+	 */
+	ResumeTokens(long graceMillis) {
+		this.graceMillis = Math.max(0, graceMillis);
+	}
+
+	/**
+	 * @return True if dropped sessions are held at all
+	 */
+	boolean holdsSessions() {
+		return graceMillis > 0;
+	}
+
+	/**
+	 * Gives a session a new token
+	 * @param session The session that joined
+	 * @return The token to send its client
+	 */
+	String issue(ClientSession session) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		char[] token = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			token[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			token[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		String issued = new String(token);
+		sessions.put(issued, session);
+		return issued;
+	}
+
+	/**
+	 * Holds a session whose connection dropped until the grace period runs out, then ends it unless it was taken over
+	 * @param token The session's token
+	 * @param session The session
+	 */
+	void hold(final String token, final ClientSession session) {
+		EXPIRY.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (sessions.remove(token, session))
+					session.expire();
+			}
+		}, graceMillis);
+	}
+
+	/**
+	 * Claims the session a token was issued to, so the caller can take it over
+	 * @param token The token a client presented
+	 * @return The session, or null if the token is unknown, was used or has expired
+	 */
+	ClientSession take(String token) {
+		return sessions.remove(token);
+	}
+
+	/**
+	 * Withdraws a session's token, as when its client leaves on purpose
+	 * @param token The token
+	 * @param session The session it was issued to
+	 * @return False if the token had already been taken or expired
+	 */
+	boolean revoke(String token, ClientSession session) {
+		return token != null && sessions.remove(token, session);
+	}
+}
@@ -0,0 +1,437 @@
+package chat.server;
+
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import chat.Frame;
+
+/**
+ * A channel clients talk in. Each room has its own members, its own recent history, its own user list and its own
+ * numbering of the lines broadcast in it, all guarded by a lock of its own, so a line said in a room only costs as
+ * much as the room has members and never waits for a broadcast in another room. Nothing sent while holding the lock
+ * waits for a slow client either, whatever the overflow policy.
+ *
+ * Every client is put in the lobby when it connects. Lines for the lobby are sent as they are, so clients that know
+ * nothing of rooms keep working; lines for any other room are sent as "/in #room LINE". Every room but the lobby is
+ * closed once its last member parts, and a client joining it after that gets a new one.
+ *
+ * In a cluster the user list also has the users of other nodes that are in the room, see Cluster. Lines said by
+ * local members are passed on to the nodes that have members in the room; lines from other nodes are only
+ * delivered to local members.
+ */
+class Room {
+	//The room every client starts in
+	static final String LOBBY = "#lobby";
+
+	//A # and up to 32 letters, digits, '-' or '_'
+	private static final Pattern NAME = Pattern.compile("#[A-Za-z0-9_-]{1,32}");
+
+	private String name;
+	//Put in front of each line sent to the room, empty for the lobby
+	private String prefix;
+	private Cluster cluster;
+
+	//The clients in the room. A client whose connection dropped stays a member, and on the user list, while its
+	//session is held for it to resume; it is just not delivered to
+	private List<ClientSession> members = new CopyOnWriteArrayList<ClientSession>();
+
+	//Held while broadcasting, so every member sees the room's broadcasts in the same order and a client joining
+	//can be given the history and added to the members without missing or repeating a line
+	private ReentrantLock lock = new ReentrantLock();
+
+	//The other nodes with members in the room and how many each has
+	private ConcurrentHashMap<String, Integer> nodes = new ConcurrentHashMap<String, Integer>();
+
+	//All guarded by lock: the recent lines, the number of the last broadcast, the user list with how many members
+	//go by each name, which is only ever more than one while two nodes sort out a clash, its version, whether the
+	//room has closed and the encoders each broadcast is encoded with once per wire format
+	private RecentHistory history;
+	private int sequence = 0;
+	private Map<String, Integer> names = new HashMap<String, Integer>();
+	private long rosterVersion = 0;
+	private boolean closed = false;
+	private CharsetEncoder textEncoder = Charset.defaultCharset().newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private CharsetEncoder frameEncoder = Charset.forName("UTF-8").newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * @param name The room's name, see normalise
+	 * @param historyLines The most recent lines kept for members joining or resuming
+	 * @param historyBytes The most encoded bytes of them kept
+	 * @param cluster The other nodes, told what is said in the room
+	 */
+	Room(String name, int historyLines, int historyBytes, Cluster cluster) {
+		this.name = name;
+		this.cluster = cluster;
+		prefix = isLobby() ? "" : "/in " + name + " ";
+		history = new RecentHistory(historyLines, historyBytes);
+	}
+
+	/**
+	 * @param name A room name as typed
+	 * @return The name in lower case, or null if it isn't a valid room name
+	 */
+	static String normalise(String name) {
+		if (!NAME.matcher(name).matches())
+			return null;
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * @return The room's name, starting with #
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return True for the room every client starts in, which is never closed
+	 */
+	boolean isLobby() {
+		return name.equals(LOBBY);
+	}
+
+	/**
+	 * @return The number of members
+	 */
+	int size() {
+		return members.size();
+	}
+
+	/**
+	 * @return The number of names on the user list, users of other nodes included
+	 */
+	int rosterSize() {
+		lock.lock();
+		try {
+			return names.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param node Another node's id
+	 * @return True if some of that node's users are in the room
+	 */
+	boolean hasNode(String node) {
+		return nodes.containsKey(node);
+	}
+
+	/**
+	 * @param line A line said in the room
+	 * @return The line as the chat log records it, with the room's name in front unless it is the lobby
+	 */
+	String logLine(String line) {
+		return isLobby() ? line : "[" + name + "] " + line;
+	}
+
+	/**
+	 * Broadcasts a line the server says about a local member, to every member and to the other nodes with members
+	 * in the room
+	 * @param m The line
+	 */
+	void say(String m) {
+		say(m, 0);
+	}
+
+	/**
+	 * Broadcasts a line said by a local member, to every member and to the other nodes with members in the room
+	 * @param m The line
+	 * @param sender The connection id of the member who said it, 0 if the server said it
+	 */
+	void say(String m, int sender) {
+		broadcast(m, sender);
+		cluster.said(this, m);
+	}
+
+	/**
+	 * Broadcasts a line from the server, or from a user of another node, to every member whose connection is up
+	 * @param m The line
+	 */
+	void broadcast(String m) {
+		broadcast(m, 0);
+	}
+
+	/**
+	 * Broadcasts a line to every member whose connection is up. The line is encoded once for each wire format and
+	 * the same bytes are queued for every member. Only the server's own lines can be directives, whatever a user's
+	 * line starts with it is sent as text
+	 * @param m The line
+	 * @param sender The connection id of the local member who said it, 0 for anything else
+	 */
+	void broadcast(String m, int sender) {
+		lock.lock();
+		try {
+			String text = prefix + m;
+			++sequence;
+			boolean directive = sender == 0 && m.startsWith("/");
+			//directives such as "/roster+" are only meaningful when sent
+			if (!directive)
+				history.add(sequence, text);
+			Broadcast broadcast = new Broadcast(text, directive ? Frame.TYPE_DIRECTIVE : Frame.TYPE_TEXT, sequence,
+					sender, textEncoder, frameEncoder);
+			try {
+				for (ClientSession member: members)
+					member.deliver(broadcast);
+			} finally {
+				broadcast.release();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Tells every member about one change to the room's user list, as "DIRECTIVE VERSION NAMES".
+	 * A snapshot may already include a change whose delta arrives after it, so clients apply deltas
+	 * idempotently: "/roster+" adds a name if it is missing, "/roster-" removes it if present and "/rename"
+	 * does both. Old clients only understand the whole list, so in the lobby, the only room they know of, they
+	 * are sent "/updatelist NAME,NAME,..." instead. Must be called holding lock
+	 * @param directive "/roster+", "/roster-" or "/rename"
+	 * @param names The name that joined or left, or the old and new names separated by a space
+	 */
+	private void broadcastRosterChange(String directive, String names) {
+		rosterVersion++;
+		++sequence;
+		Broadcast change = new Broadcast(prefix + directive + " " + rosterVersion + " " + names, Frame.TYPE_DIRECTIVE,
+				sequence, 0, textEncoder, frameEncoder);
+		Broadcast list = null;
+		try {
+			for (ClientSession member: members)
+			{
+				if (member.speaksBinary())
+					member.deliver(change);
+				else if (isLobby() && !this.names.isEmpty())
+				{
+					if (list == null)
+						list = new Broadcast(appendNames(new StringBuilder("/updatelist ")).toString(),
+								Frame.TYPE_DIRECTIVE, sequence, 0, textEncoder, frameEncoder);
+					member.deliver(list);
+				}
+			}
+		} finally {
+			change.release();
+			if (list != null)
+				list.release();
+		}
+	}
+
+	//adds a name to the user list, telling the members if nobody else goes by it. Must be called holding lock
+	private void show(String member) {
+		Integer count = names.get(member);
+		names.put(member, count == null ? 1 : count + 1);
+		if (count == null)
+			broadcastRosterChange("/roster+", member);
+	}
+
+	//removes a name from the user list, telling the members if nobody else goes by it. Must be called holding lock
+	private void hide(String member) {
+		Integer count = names.get(member);
+		if (count == null)
+			return;
+		if (count > 1)
+			names.put(member, count - 1);
+		else
+		{
+			names.remove(member);
+			broadcastRosterChange("/roster-", member);
+		}
+	}
+
+	/**
+	 * Changes a member's name in the user list
+	 * @param oldName The name it went by
+	 * @param newName The name it goes by now
+	 */
+	void rename(String oldName, String newName) {
+		lock.lock();
+		try {
+			Integer oldCount = names.get(oldName);
+			Integer newCount = names.get(newName);
+			if (oldCount == null || oldCount > 1 || newCount != null)
+			{
+				//the list only changes for a name nobody else goes by
+				hide(oldName);
+				show(newName);
+				return;
+			}
+			names.remove(oldName);
+			names.put(newName, 1);
+			broadcastRosterChange("/rename", oldName + " " + newName);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a client the room's whole user list as "/roster VERSION NAME,NAME,...", or "/updatelist NAME,NAME,..."
+	 * for an old client in the lobby
+	 * @param session The client
+	 */
+	void sendRoster(ClientSession session) {
+		lock.lock();
+		OutboundQueue.forbidWaiting(true);
+		try {
+			writeRoster(session);
+		} finally {
+			OutboundQueue.forbidWaiting(false);
+			lock.unlock();
+		}
+	}
+
+	//sends the user list, as "/updatelist" to an old client in the lobby. Must be called holding lock
+	private void writeRoster(ClientSession session) {
+		PrintWriter output = session.output();
+		if (session.speaksBinary())
+			output.println(appendNames(new StringBuilder(prefix).append("/roster ").append(rosterVersion).append(' ')));
+		else if (isLobby() && !names.isEmpty())
+			output.println(appendNames(new StringBuilder("/updatelist ")));
+		output.flush();
+	}
+
+	//adds the names on the user list, separated by commas. Must be called holding lock
+	private StringBuilder appendNames(StringBuilder list) {
+		boolean first = true;
+		for (String member: names.keySet())
+		{
+			if (!first)
+				list.append(',');
+			list.append(member);
+			first = false;
+		}
+		return list;
+	}
+
+	/**
+	 * Adds a member, first sending it the recent history and the user list and then "/seq N", N being the last
+	 * broadcast sent before its first one, for it to resume from. Every member is then sent "/roster+" for it
+	 * @param session The client joining
+	 * @return False if the room has closed, in which case the caller should get the room again
+	 */
+	boolean add(ClientSession session) {
+		lock.lock();
+		OutboundQueue.forbidWaiting(true);
+		try {
+			if (closed)
+				return false;
+			if (members.contains(session))
+				return true;
+			history.replay(session.output());
+			writeRoster(session);
+			session.output().println(prefix + "/seq " + sequence);
+			members.add(session);
+			show(session.clientName);
+			return true;
+		} finally {
+			OutboundQueue.forbidWaiting(false);
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands a member's place to the connection resuming its session, sending it only the lines it missed, the
+	 * user list and "/seq N". Nobody else is told
+	 * @param old The session being resumed
+	 * @param session The connection taking it over
+	 * @param after The number of the last of the room's broadcasts the client received
+	 * @return False if some lines broadcast after it are no longer kept
+	 */
+	boolean takeOver(ClientSession old, ClientSession session, long after) {
+		lock.lock();
+		OutboundQueue.forbidWaiting(true);
+		try {
+			boolean complete = history.replay(session.output(), after);
+			writeRoster(session);
+			session.output().println(prefix + "/seq " + sequence);
+			int index = members.indexOf(old);
+			if (index >= 0)
+				members.set(index, session);
+			else
+				members.add(session);
+			return complete;
+		} finally {
+			OutboundQueue.forbidWaiting(false);
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a member, closing the room if nobody is left in it here or on another node and this isn't the lobby.
+	 * The remaining members are sent "/roster-" for it
+	 * @param session The client leaving
+	 * @return True if the room closed
+	 */
+	boolean remove(ClientSession session) {
+		lock.lock();
+		try {
+			if (members.remove(session))
+				hide(session.clientName);
+			return closeIfEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a user of another node to the user list
+	 * @param node The node the user is connected to
+	 * @param member The user's name
+	 * @return False if the room has closed, in which case the caller should get the room again
+	 */
+	boolean addRemote(String node, String member) {
+		lock.lock();
+		try {
+			if (closed)
+				return false;
+			Integer count = nodes.get(node);
+			nodes.put(node, count == null ? 1 : count + 1);
+			show(member);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a user of another node from the user list, closing the room as remove does
+	 * @param node The node the user is connected to
+	 * @param member The user's name
+	 * @return True if the room closed
+	 */
+	boolean removeRemote(String node, String member) {
+		lock.lock();
+		try {
+			Integer count = nodes.get(node);
+			if (count != null)
+			{
+				if (count > 1)
+					nodes.put(node, count - 1);
+				else
+					nodes.remove(node);
+				hide(member);
+			}
+			return closeIfEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//closes the room if nobody is in it, must be called holding lock
+	private boolean closeIfEmpty() {
+		if (members.isEmpty() && nodes.isEmpty() && !isLobby())
+			closed = true;
+		return closed;
+	}
+}
@@ -0,0 +1,168 @@
+package chat.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * The chat log as a directory of fixed-size segments. Records are appended to the newest segment until it is full,
+ * then a new one is started. Next to every segment is a sparse index holding the sequence number, timestamp and
+ * file offset of a record every indexInterval bytes, which lets a ChatLogReader jump close to any sequence number
+ * or time without reading the segments before it.
+ *
+ * A segment is named after the sequence number of its first record, e.g. 00000000000000000001.log with its index
+ * in 00000000000000000001.idx. Records are [int length][long sequence][long timestamp][UTF-8 text], where length
+ * counts everything after itself, and index entries are [long sequence][long timestamp][int offset].
+ *
+ * Whenever a segment is started the oldest segments are deleted until those left before it take no more than
+ * retainBytes, so the log never holds much more than that plus one segment however long the server runs.
+ *
+ * Only the ChatLogAppender thread writes to the log.
+ */
+class SegmentedChatLog {
+	static final String SEGMENT_SUFFIX = ".log";
+	static final String INDEX_SUFFIX = ".idx";
+	static final int RECORD_HEADER_SIZE = 20;
+	static final int INDEX_ENTRY_SIZE = 20;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File directory;
+	private long segmentBytes;
+	private int indexInterval;
+	private long retainBytes;
+
+	private FileOutputStream segmentStream;
+	private FileOutputStream indexStream;
+	private BufferedOutputStream segment;
+	private BufferedOutputStream index;
+	private long segmentLength;
+	private long lastIndexed;
+	private long nextSequence;
+
+	private ByteBuffer header = ByteBuffer.allocate(Math.max(RECORD_HEADER_SIZE, INDEX_ENTRY_SIZE));
+
+	/**
+	 * Opens the log, carrying on the sequence numbers of any segments already in the directory. Writing always
+	 * starts in a new segment, so a record cut short by a crash is simply left at the end of the old one
+	 * @param directory The directory holding the segments, created if needed
+	 * @param segmentBytes The size at which a segment is closed and a new one started
+	 * @param indexInterval The number of bytes between index entries
+	 * @param retainBytes The most bytes kept in the segments before the one being written, 0 to keep them all
+	 * @throws IOException If the directory can't be read or the first segment created
+	 */
+	SegmentedChatLog(File directory, long segmentBytes, int indexInterval, long retainBytes) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = Math.min(Math.max(segmentBytes, 4096), Integer.MAX_VALUE);
+		this.indexInterval = Math.max(indexInterval, 1);
+		this.retainBytes = Math.max(retainBytes, 0);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create chat log directory " + directory);
+
+		nextSequence = 1;
+		List<File> segments = ChatLogReader.segments(directory);
+		if (!segments.isEmpty())
+		{
+			ChatLogRecord last = new ChatLogReader(directory).last();
+			if (last != null)
+				nextSequence = last.getSequence() + 1;
+			else
+				nextSequence = ChatLogReader.firstSequence(segments.get(segments.size() - 1));
+		}
+		startSegment();
+	}
+
+	/**
+	 * Appends a record, starting a new segment first if this one would grow past its size
+	 * @param timestamp When the record was logged
+	 * @param text The line to log, without its line break
+	 * @return The sequence number given to the record
+	 * @throws IOException If the record could not be written
+	 */
+	long append(long timestamp, String text) throws IOException {
+		byte[] bytes = text.getBytes(UTF8);
+		int length = RECORD_HEADER_SIZE + bytes.length;
+		if (segmentLength > 0 && segmentLength + length > segmentBytes)
+		{
+			closeSegment();
+			startSegment();
+		}
+
+		long sequence = nextSequence++;
+		if (segmentLength == 0 || segmentLength - lastIndexed >= indexInterval)
+		{
+			header.clear();
+			header.putLong(sequence).putLong(timestamp).putInt((int)segmentLength);
+			index.write(header.array(), 0, INDEX_ENTRY_SIZE);
+			lastIndexed = segmentLength;
+		}
+
+		header.clear();
+		header.putInt(length - 4).putLong(sequence).putLong(timestamp);
+		segment.write(header.array(), 0, RECORD_HEADER_SIZE);
+		segment.write(bytes);
+		segmentLength += length;
+		return sequence;
+	}
+
+	/**
+	 * Hands everything appended so far to the operating system
+	 */
+	void flush() throws IOException {
+		segment.flush();
+		index.flush();
+	}
+
+	/**
+	 * Forces flushed data to disk
+	 */
+	void sync() throws IOException {
+		segmentStream.getChannel().force(false);
+		indexStream.getChannel().force(false);
+	}
+
+	/**
+	 * Flushes, syncs and closes the current segment
+	 */
+	void close() throws IOException {
+		closeSegment();
+	}
+
+	private void startSegment() throws IOException {
+		String name = ChatLogReader.segmentName(nextSequence);
+		segmentStream = new FileOutputStream(new File(directory, name + SEGMENT_SUFFIX));
+		indexStream = new FileOutputStream(new File(directory, name + INDEX_SUFFIX));
+		segment = new BufferedOutputStream(segmentStream, 64 * 1024);
+		index = new BufferedOutputStream(indexStream, 4 * 1024);
+		segmentLength = 0;
+		lastIndexed = 0;
+		trim();
+	}
+
+	//deletes the oldest segments until the ones before the newest fit in retainBytes
+	private void trim() {
+		if (retainBytes == 0)
+			return;
+		List<File> segments = ChatLogReader.segments(directory);
+		long kept = 0;
+		for (int i = segments.size() - 2; i >= 0; i--)
+		{
+			File segment = segments.get(i);
+			File index = ChatLogReader.indexFile(segment);
+			kept += segment.length() + index.length();
+			//the segment goes first, so a reader listing the directory meanwhile never finds it without its index
+			if (kept > retainBytes && segment.delete())
+				index.delete();
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		flush();
+		sync();
+		segment.close();
+		index.close();
+	}
+}
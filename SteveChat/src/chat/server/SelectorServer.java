@@ -0,0 +1,70 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking front end for the relay. The calling thread accepts connections and hands each one to one of
+ * a fixed number of event loops in turn, and from then on that loop does every read, write and command for
+ * the client, so the number of threads no longer grows with the number of users.
+ */
+public class SelectorServer {
+	private ChatRelayServer server;
+	private ServerSocketChannel acceptor;
+	private EventLoop[] loops;
+
+	/**
+	 * Creates the event loops, they are only started by run()
+	 * @param server The server whose users and logs the loops work with
+	 * @param acceptor A bound channel to accept clients on
+	 * @param loopCount The number of event loops, normally one per core
+	 * @throws IOException If a selector could not be opened
+	 */
+	public SelectorServer(ChatRelayServer server, ServerSocketChannel acceptor, int loopCount) throws IOException {
+		this.server = server;
+		this.acceptor = acceptor;
+		loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new EventLoop(server, i);
+	}
+
+	/**
+	 * Starts the event loops and accepts clients until the acceptor is closed. A failed accept, such as running out
+	 * of file descriptors, is logged and accepting carries on after a short pause
+	 */
+	public void run() {
+		for (EventLoop loop: loops)
+			loop.start();
+
+		int next = 0;
+		while (acceptor.isOpen())
+		{
+			SocketChannel channel = null;
+			try {
+				channel = acceptor.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			} catch (IOException e) {
+				if (!acceptor.isOpen())
+					break;
+				server.debug("Error accepting a client: " + e.getMessage());
+				if (channel != null)
+					close(channel);
+				else
+					ChatRelayServer.pauseAfterFailedAccept();
+			}
+		}
+		server.debug("Server stopped accepting clients");
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
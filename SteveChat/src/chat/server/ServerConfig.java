@@ -0,0 +1,147 @@
+package chat.server;
+
+import java.awt.GraphicsEnvironment;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything the server can be configured with. Each setting has a default, can be set with the system property
+ * "stevechat.NAME" and can be overridden on the command line with "-NAME VALUE", e.g. "-port 9000 -bind 127.0.0.1".
+ * The flags "-nio", "-virtual" and "-headless" take no value.
+ *
+ * To run in a cluster, give "-clusterPort" the port other nodes link to and "-peers" every other node's host and
+ * cluster port, e.g. "-clusterPort 9201 -peers host2:9201,host3:9201". The node id defaults to this host's name and
+ * the cluster port, and settles nickname clashes, so it must differ on every node.
+ *
+ * The cluster port only listens on the loopback address unless "-clusterBind" says otherwise, as a node believes
+ * whatever a linked node tells it. Listening anywhere else needs the same "-clusterSecret" on every node, which each
+ * link proves knowledge of when it comes up, e.g. "-clusterBind 0.0.0.0 -clusterSecret s3cret"; a node that can't
+ * is refused.
+ *
+ * The overflow policy BLOCK only ever makes a client's own handler wait for its queue, a broadcast or another client
+ * finding the queue full drops the client instead. It can't be used with -nio.
+ *
+ * A client that sends "/oper" with the operator password can see the server's statistics with "/stats". Nobody can
+ * while the password is empty, as it is by default.
+ */
+public class ServerConfig {
+	//Every setting and its default, in the order they are listed by usage()
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULTS.put("port", "9999");
+		DEFAULTS.put("bind", "");
+		DEFAULTS.put("nio", "false");
+		DEFAULTS.put("virtual", "false");
+		DEFAULTS.put("headless", Boolean.toString(GraphicsEnvironment.isHeadless()));
+		DEFAULTS.put("outboundCapacity", "256");
+		DEFAULTS.put("overflowPolicy", "DROP_OLDEST");
+		DEFAULTS.put("overflowTimeout", "2000");
+		DEFAULTS.put("historyLines", "100");
+		DEFAULTS.put("historyBytes", Integer.toString(64 * 1024));
+		DEFAULTS.put("resumeGraceMillis", "60000");
+		DEFAULTS.put("clusterPort", "0");
+		DEFAULTS.put("clusterBind", "127.0.0.1");
+		DEFAULTS.put("clusterSecret", "");
+		DEFAULTS.put("peers", "");
+		DEFAULTS.put("nodeId", "");
+		DEFAULTS.put("operatorPassword", "");
+		DEFAULTS.put("logDirectory", "ChatLog");
+		DEFAULTS.put("logSegmentBytes", Long.toString(64L * 1024 * 1024));
+		DEFAULTS.put("logIndexInterval", "4096");
+		DEFAULTS.put("logRetainBytes", Long.toString(1024L * 1024 * 1024));
+		DEFAULTS.put("logFlushRecords", "64");
+		DEFAULTS.put("logFlushMillis", "200");
+		DEFAULTS.put("logSyncMillis", "1000");
+		DEFAULTS.put("operatorLogLines", "2000");
+	}
+
+	private Map<String, String> values = new LinkedHashMap<String, String>();
+
+	/**
+	 * Reads every setting from its system property, or its default if the property isn't set
+	 */
+	public ServerConfig() {
+		for (Map.Entry<String, String> setting: DEFAULTS.entrySet())
+			values.put(setting.getKey(), System.getProperty("stevechat." + setting.getKey(), setting.getValue()));
+	}
+
+	/**
+	 * @param args Command line arguments, which override the system properties
+	 * @return The configuration
+	 * @throws IllegalArgumentException If an argument isn't a known setting or is missing its value
+	 */
+	public static ServerConfig fromArgs(String[] args) {
+		ServerConfig config = new ServerConfig();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (!args[i].startsWith("-") || !DEFAULTS.containsKey(args[i].substring(1)))
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			String name = args[i].substring(1);
+			if (name.equals("nio") || name.equals("virtual") || name.equals("headless"))
+				config.set(name, "true");
+			else if (i + 1 < args.length)
+				config.set(name, args[++i]);
+			else
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+		}
+		return config;
+	}
+
+	/**
+	 * @return A description of the command line options and their current values
+	 */
+	public String usage() {
+		StringBuilder usage = new StringBuilder("Options (each can also be set with -Dstevechat.NAME=VALUE):");
+		for (Map.Entry<String, String> setting: values.entrySet())
+			usage.append("\n  -").append(setting.getKey()).append(" (").append(setting.getValue()).append(')');
+		return usage.toString();
+	}
+
+	/**
+	 * Changes a setting
+	 * @param name The setting, without the "stevechat." prefix
+	 * @param value Its new value
+	 * @return This configuration
+	 */
+	public ServerConfig set(String name, String value) {
+		if (!DEFAULTS.containsKey(name))
+			throw new IllegalArgumentException("Unknown setting " + name);
+		values.put(name, value);
+		return this;
+	}
+
+	String get(String name) {
+		return values.get(name);
+	}
+
+	int getInt(String name) {
+		try {
+			return Integer.parseInt(values.get(name).trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setting " + name + " must be a number, not " + values.get(name));
+		}
+	}
+
+	long getLong(String name) {
+		try {
+			return Long.parseLong(values.get(name).trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setting " + name + " must be a number, not " + values.get(name));
+		}
+	}
+
+	boolean getBoolean(String name) {
+		return Boolean.parseBoolean(values.get(name).trim());
+	}
+
+	/**
+	 * @return The overflow policy setting
+	 */
+	OutboundQueue.OverflowPolicy getOverflowPolicy() {
+		try {
+			return OutboundQueue.OverflowPolicy.valueOf(values.get("overflowPolicy").trim());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Setting overflowPolicy must be DROP_OLDEST, DISCONNECT or BLOCK");
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package chat.server;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * The server's debug window, a viewer of the operator log. A Swing timer reads whatever has been logged since
+ * it last looked and appends it in one go, so the window is only ever touched on the event dispatch thread and
+ * the server never waits for it. The window keeps at most maxLines lines. Closing it offers to shut the server down.
+ */
+@SuppressWarnings("serial")
+class ServerWindow extends JFrame {
+	//How often the log is checked for new lines, and the most shown per check
+	private static final int INTERVAL = 250;
+	private static final int BATCH = 1000;
+
+	private JTextArea debugArea = new JTextArea();
+	private OperatorLog log;
+	private long position = 0;
+	private int maxLines;
+
+	/**
+	 * Opens the window
+	 * @param server The server whose log is shown
+	 * @param log The log to show
+	 * @param maxLines The most lines kept in the window
+	 */
+	ServerWindow(final ChatRelayServer server, OperatorLog log, int maxLines) {
+		super("Server debug");
+		this.log = log;
+		this.maxLines = Math.max(1, maxLines);
+		add(new JScrollPane(debugArea));
+		debugArea.setEditable(false);
+		setSize(300, 300);
+		setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+
+		//Add specific functionality to the server Window for shuting down
+		addWindowListener(new WindowAdapter(){
+			@Override
+			public void windowClosing(WindowEvent arg0) {
+				int result = JOptionPane.showConfirmDialog(null, "Immediate shutdown? (Saying no will shut the server down in 30s");
+
+				if (result == JOptionPane.CANCEL_OPTION || result == JOptionPane.CLOSED_OPTION)
+					return;
+				server.debug("Server received shutdown request, stopping all functionality");
+				final boolean immediate = result == JOptionPane.YES_OPTION;
+				//the countdown sleeps, so it must not run on the event dispatch thread
+				new Thread("Shutdown") {
+					@Override
+					public void run() {
+						try {
+							server.shutdown(immediate ? 0 : 30, immediate);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}.start();
+			}
+		});
+
+		new Timer(INTERVAL, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showPending();
+			}
+		}).start();
+		setVisible(true);
+	}
+
+	/**
+	 * Appends the lines logged since the last check, dropping the oldest shown lines beyond maxLines
+	 */
+	private void showPending() {
+		List<String> lines = new ArrayList<String>();
+		position = log.read(position, BATCH, lines);
+		if (lines.isEmpty())
+			return;
+
+		StringBuilder text = new StringBuilder();
+		for (String line: lines)
+			text.append(line).append('\n');
+		debugArea.append(text.toString());
+
+		int excess = debugArea.getLineCount() - 1 - maxLines;
+		if (excess > 0)
+		{
+			try {
+				debugArea.replaceRange(null, 0, debugArea.getLineStartOffset(excess));
+			} catch (BadLocationException e) {
+				debugArea.setText("");
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clients that have joined the chat, indexed both by connection id and by nickname so that either lookup
+ * is a single hash probe. Nicknames are unique ignoring case and are claimed atomically, so two clients can never
+ * end up with the same name however their commands interleave.
+ */
+class SessionRegistry {
+	private ConcurrentHashMap<Integer, ClientSession> byId = new ConcurrentHashMap<Integer, ClientSession>();
+	private ConcurrentHashMap<String, ClientSession> byNick = new ConcurrentHashMap<String, ClientSession>();
+
+	/**
+	 * Gives a nickname to a session, registering it if it is new and releasing its old name if it had one
+	 * @param session The session claiming the name
+	 * @param nick The nickname it wants
+	 * @return False if another session already holds the name
+	 */
+	boolean claim(ClientSession session, String nick) {
+		String key = normalise(nick);
+		ClientSession holder = byNick.putIfAbsent(key, session);
+		if (holder != null && holder != session)
+			return false;
+
+		String oldNick = session.clientName;
+		if (oldNick != null && !normalise(oldNick).equals(key))
+			byNick.remove(normalise(oldNick), session);
+		byId.put(session.getConnectionId(), session);
+		return true;
+	}
+
+	/**
+	 * Removes a session and frees its nickname
+	 * @param session The session that left
+	 */
+	void remove(ClientSession session) {
+		byId.remove(session.getConnectionId(), session);
+		if (session.clientName != null)
+			byNick.remove(normalise(session.clientName), session);
+	}
+
+	/**
+	 * Moves a session's nickname to the connection that resumed it
+	 * @param from The session that was resumed
+	 * @param to The new session, already given the same name
+	 */
+	void transfer(ClientSession from, ClientSession to) {
+		byNick.replace(normalise(from.clientName), from, to);
+		byId.remove(from.getConnectionId(), from);
+		byId.put(to.getConnectionId(), to);
+	}
+
+	/**
+	 * @param nick A nickname in any case
+	 * @return The session using the name, or null if nobody is
+	 */
+	ClientSession find(String nick) {
+		return byNick.get(normalise(nick));
+	}
+
+	/**
+	 * @param connectionId The id the server gave the connection
+	 * @return The session, or null if the connection has not joined or has left
+	 */
+	ClientSession get(int connectionId) {
+		return byId.get(connectionId);
+	}
+
+	/**
+	 * @return Every registered session
+	 */
+	Collection<ClientSession> sessions() {
+		return byId.values();
+	}
+
+	/**
+	 * @return The names of every registered session
+	 */
+	List<String> nicknames() {
+		List<String> names = new ArrayList<String>(byId.size());
+		for (ClientSession session: byId.values())
+			names.add(session.clientName);
+		return names;
+	}
+
+	/**
+	 * @return The number of registered sessions
+	 */
+	int size() {
+		return byId.size();
+	}
+
+	/**
+	 * @param nick A nickname
+	 * @return The key the name is claimed under, so names differing only in case clash
+	 */
+	static String normalise(String nick) {
+		return nick.toLowerCase(Locale.ENGLISH);
+	}
+}
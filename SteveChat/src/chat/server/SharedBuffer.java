@@ -0,0 +1,143 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoded output that can be queued for any number of clients without being copied. Every holder owns one
+ * reference: whoever allocates the buffer starts with one, each OutboundQueue the buffer is sent to takes another,
+ * and each drops its reference with release() once it is done with the bytes. When the last reference goes the
+ * array goes back to a pool, so a broadcast allocates nothing once the pool has warmed up.
+ *
+ * The bytes must not be changed once the buffer has been handed to anybody else.
+ */
+final class SharedBuffer {
+	//Arrays are pooled in power of two sizes between these, each size keeping at most POOL_BYTES of spares
+	private static final int MIN_SHIFT = 7;
+	private static final int MAX_SHIFT = 17;
+	private static final int POOL_BYTES = 1024 * 1024;
+
+	private static final Pool[] POOLS = new Pool[MAX_SHIFT - MIN_SHIFT + 1];
+	static {
+		for (int i = 0; i < POOLS.length; i++)
+			POOLS[i] = new Pool(Math.max(4, POOL_BYTES >> (MIN_SHIFT + i)));
+	}
+
+	private final byte[] data;
+	private int length;
+	//System.nanoTime() when a broadcast encoded the buffer, 0 for output to one client
+	private long broadcastAt = 0;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	private SharedBuffer(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * @param capacity The most bytes that will be put in the buffer
+	 * @return A buffer of length 0 with one reference, owned by the caller
+	 */
+	static SharedBuffer allocate(int capacity) {
+		int shift = shift(capacity);
+		if (shift > MAX_SHIFT)
+			return new SharedBuffer(new byte[capacity]);
+		byte[] data = POOLS[shift - MIN_SHIFT].spares.poll();
+		if (data == null)
+			data = new byte[1 << shift];
+		else
+			POOLS[shift - MIN_SHIFT].count.decrementAndGet();
+		return new SharedBuffer(data);
+	}
+
+	/**
+	 * @return The array holding the bytes, starting at index 0. Only the first length() bytes belong to the buffer
+	 */
+	byte[] array() {
+		return data;
+	}
+
+	/**
+	 * @return The number of bytes in the buffer
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Sets how many bytes were put in the buffer. Only for its owner, before anybody else sees it
+	 * @param length The number of bytes written into array()
+	 */
+	void setLength(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * @return System.nanoTime() when the buffer was encoded for a broadcast, or 0 if it wasn't a broadcast
+	 */
+	long broadcastAt() {
+		return broadcastAt;
+	}
+
+	/**
+	 * Marks the buffer as a broadcast. Only for its owner, before anybody else sees it
+	 * @param nanos System.nanoTime() when it was encoded
+	 */
+	void setBroadcastAt(long nanos) {
+		broadcastAt = nanos;
+	}
+
+	/**
+	 * @return A new ByteBuffer over the bytes, with its own position so each connection can write at its own pace
+	 */
+	ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(data, 0, length);
+	}
+
+	/**
+	 * Takes another reference
+	 * @return This buffer
+	 */
+	SharedBuffer retain() {
+		if (references.getAndIncrement() <= 0)
+			throw new IllegalStateException("Buffer used after it was released");
+		return this;
+	}
+
+	/**
+	 * Drops a reference, returning the array to the pool if it was the last one
+	 */
+	void release() {
+		int left = references.decrementAndGet();
+		if (left > 0)
+			return;
+		if (left < 0)
+			throw new IllegalStateException("Buffer released more times than it was retained");
+
+		int shift = shift(data.length);
+		if (shift <= MAX_SHIFT && data.length == 1 << shift)
+		{
+			Pool pool = POOLS[shift - MIN_SHIFT];
+			if (pool.count.incrementAndGet() <= pool.limit)
+				pool.spares.offer(data);
+			else
+				pool.count.decrementAndGet();
+		}
+	}
+
+	//the smallest pooled size that holds capacity bytes, as a power of two
+	private static int shift(int capacity) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity - 1, 1));
+		return Math.max(shift, MIN_SHIFT);
+	}
+
+	private static final class Pool {
+		final ConcurrentLinkedQueue<byte[]> spares = new ConcurrentLinkedQueue<byte[]>();
+		final AtomicInteger count = new AtomicInteger();
+		final int limit;
+
+		Pool(int limit) {
+			this.limit = limit;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package chat.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that every client thread and event loop can add to at once without them fighting over one cache line.
+ * The count is split over a few stripes, each thread adding to the stripe its id hashes to, and the stripes are only
+ * summed when the count is read. Reading while threads add gives a total that was true at some point during the
+ * read, which is all a statistic needs.
+ */
+final class StripedCounter {
+	//Stripes are spread this many longs apart, so that two never share a 64 byte cache line
+	private static final int SPACING = 8;
+
+	//A few stripes per core, as threads hash onto stripes unevenly
+	static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) * 2);
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+
+	/**
+	 * Adds one
+	 */
+	void increment() {
+		cells.incrementAndGet(stripe() * SPACING);
+	}
+
+	/**
+	 * @param amount How much to add
+	 */
+	void add(long amount) {
+		cells.addAndGet(stripe() * SPACING, amount);
+	}
+
+	/**
+	 * @return The total added so far
+	 */
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * SPACING);
+		return sum;
+	}
+
+	/**
+	 * @return The stripe the calling thread adds to, between 0 and STRIPES - 1
+	 */
+	static int stripe() {
+		//thread ids are handed out in order, multiplying scatters neighbouring ones over the stripes
+		long id = Thread.currentThread().getId();
+		return ((int)id * 0x9E3779B9 >>> 16) & (STRIPES - 1);
+	}
+}